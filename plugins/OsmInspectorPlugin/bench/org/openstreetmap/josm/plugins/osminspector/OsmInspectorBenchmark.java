@@ -0,0 +1,252 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.projection.Epsg4326;
+import org.openstreetmap.josm.data.projection.Projection;
+import org.openstreetmap.josm.plugins.osminspector.OsmInspectorLayer.BugIndex;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Micro benchmarks of the hot paths of the plugin: ingest and merge in
+ * {@link OSMIFeatureTracker}, {@link BugIndex} building and navigation,
+ * {@link BugSet#pick(Projection, Envelope)} as done by
+ * OsmInspectorLayer.selectFeatures, the {@link BugSnapshot} round-trip, and
+ * painting a view with {@link BugTileRenderer} and the {@link BugStyle}s of
+ * the layer, through the StreamingRenderer and {@link BugPainter}. The bugs
+ * are synthetic OSMI-shaped points and duplicate_ways lines, no network
+ * access is needed.
+ *
+ * Run with <code>ant benchmark</code>, the scales can be set with
+ * <code>-Dbench.scales=1000,10000</code>.
+ *
+ * @author snikhil
+ *
+ */
+public class OsmInspectorBenchmark {
+
+	private static final String DEFAULT_SCALES = "1000,10000,100000,1000000";
+	private static final long WARMUP_MS = 1000;
+	private static final long MEASURE_MS = 3000;
+	private static final int MIN_RUNS = 5;
+
+	// synthetic bugs are spread over this lon/lat area
+	private static final Envelope AREA = new Envelope(5.0, 15.0, 45.0, 55.0);
+	private static final String[] DESCRIPTIONS = { "Unconnected major 1",
+			"Unconnected major 2", "Unconnected major 5",
+			"Unconnected minor 1", "Unconnected minor 2",
+			"Unconnected minor 5", "Duplicate way", "Island",
+			"Dead-end oneway", "Impossible angle" };
+
+	// the painted view, below the clustering threshold of the layer
+	private static final int VIEW_WIDTH = 1024;
+	private static final int VIEW_HEIGHT = 768;
+	private static final double VIEW_DEGREES_PER_PIXEL = 0.0005;
+
+	private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+	/**
+	 * A benchmarked operation
+	 */
+	private interface Operation {
+		void run() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String scales = System.getProperty("bench.scales");
+		if (scales == null || scales.length() == 0 || scales.startsWith("$"))
+			scales = DEFAULT_SCALES;
+
+		System.out.println(String.format("%-28s %10s %12s %8s", "benchmark", "bugs", "ms/op", "runs"));
+		for (String scale : scales.split(",")) {
+			int n = Integer.parseInt(scale.trim());
+			run(n, createFeatures("points", "Point", n, 1));
+			run(n, createFeatures("duplicate_ways", "LineString", n, 2));
+		}
+	}
+
+	private static void run(int n, final ListFeatureCollection features) throws Exception {
+		final String type = features.getSchema().getTypeName();
+		final List<SimpleFeature> list = new ArrayList<SimpleFeature>();
+		features.accepts(new org.opengis.feature.FeatureVisitor() {
+			public void visit(org.opengis.feature.Feature feature) {
+				list.add((SimpleFeature) feature);
+			}
+		}, null);
+
+		measure(type + " ingest", n, new Operation() {
+			public void run() {
+				OSMIFeatureTracker tracker = new OSMIFeatureTracker(type, features.getSchema());
+				for (SimpleFeature f : list)
+					tracker.add(f);
+				tracker.commit();
+			}
+		});
+
+		final OSMIFeatureTracker tracker = new OSMIFeatureTracker(type, features.getSchema());
+		tracker.mergeFeatures(features);
+		measure(type + " merge duplicates", n, new Operation() {
+			public void run() {
+				tracker.mergeFeatures(features);
+			}
+		});
+
+		measure(type + " index build", n, new Operation() {
+			public void run() {
+				BugIndex index = new BugIndex();
+				for (SimpleFeature f : list)
+					index.add(f);
+			}
+		});
+
+		final BugIndex index = new BugIndex();
+		for (SimpleFeature f : list)
+			index.add(f);
+		measure(type + " index navigation", n, new Operation() {
+			public void run() {
+				BugIndex frozen = index.freeze();
+				for (int i = 0; i < frozen.size(); ++i) {
+					frozen.get(i).getCentroid();
+				}
+			}
+		});
+
+		// 1000 clicks with the 5 pixel tolerance at about street zoom level,
+		// tested on the projected coordinates like
+		// OsmInspectorLayer.selectFeatures does
+		final Projection projection = new Epsg4326();
+		final BugSet bugSet = tracker.getBugs();
+		final Envelope[] clicks = new Envelope[1000];
+		Random random = new Random(42);
+		for (int i = 0; i < clicks.length; ++i) {
+			double x = AREA.getMinX() + random.nextDouble() * AREA.getWidth();
+			double y = AREA.getMinY() + random.nextDouble() * AREA.getHeight();
+			EastNorth min = projection.latlon2eastNorth(new LatLon(y - 0.0005, x - 0.0005));
+			EastNorth max = projection.latlon2eastNorth(new LatLon(y + 0.0005, x + 0.0005));
+			clicks[i] = new Envelope(min.east(), max.east(), min.north(), max.north());
+		}
+		bugSet.getProjected(projection, -1);
+		measure(type + " pick x1000", n, new Operation() {
+			public void run() {
+				for (Envelope click : clicks)
+					bugSet.pick(projection, click);
+			}
+		});
+
+		// the binary snapshot doubles as fixture, this times the round-trip
+		final File snapshotFile = File.createTempFile("osminspector", ".osmib");
+		snapshotFile.deleteOnExit();
+		final Map<String, BugSet> bugSets = Collections.singletonMap("bench/" + type, tracker.getBugs());
+		measure(type + " snapshot write", n, new Operation() {
+			public void run() throws Exception {
+				BugSnapshot.write(snapshotFile, bugSets);
+			}
+		});
+		measure(type + " snapshot load", n, new Operation() {
+			public void run() throws Exception {
+				BugSnapshot.open(snapshotFile).getSection(0).getFeatures();
+			}
+		});
+
+		// a view of the single bugs, rendered in screen tiles with the
+		// styles of the layer; every run starts with an empty tile cache
+		final BugLayerState state = new BugLayerState().withBugs("bench/" + type, bugSet, index.freeze());
+		final CoordinateReferenceSystem crs = CRS.decode("EPSG:4326");
+		final BufferedImage image = new BufferedImage(VIEW_WIDTH, VIEW_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+		final EastNorth origin = projection.latlon2eastNorth(new LatLon(
+				AREA.centre().y + VIEW_HEIGHT * VIEW_DEGREES_PER_PIXEL / 2,
+				AREA.centre().x - VIEW_WIDTH * VIEW_DEGREES_PER_PIXEL / 2));
+		EastNorth corner = projection.latlon2eastNorth(new LatLon(
+				AREA.centre().y - VIEW_HEIGHT * VIEW_DEGREES_PER_PIXEL / 2,
+				AREA.centre().x + VIEW_WIDTH * VIEW_DEGREES_PER_PIXEL / 2));
+		final double scale = (corner.east() - origin.east()) / VIEW_WIDTH;
+		final int level = BugSet.getLevel(VIEW_DEGREES_PER_PIXEL);
+		for (final boolean direct : new boolean[] { false, true }) {
+			measure(type + (direct ? " paint tiles direct" : " paint tiles"), n, new Operation() {
+				public void run() {
+					Graphics2D g = image.createGraphics();
+					try {
+						new BugTileRenderer(crs, direct, 64).paint(g, state, projection,
+								origin, scale, VIEW_WIDTH, VIEW_HEIGHT, level);
+					} finally {
+						g.dispose();
+					}
+				}
+			});
+		}
+	}
+
+	private static void measure(String name, int n, Operation op) throws Exception {
+		long start = System.currentTimeMillis();
+		int runs = 0;
+		while (runs < 2 || System.currentTimeMillis() - start < WARMUP_MS) {
+			op.run();
+			++runs;
+		}
+
+		runs = 0;
+		long begin = System.nanoTime();
+		long elapsed;
+		do {
+			op.run();
+			++runs;
+			elapsed = System.nanoTime() - begin;
+		} while (runs < MIN_RUNS || elapsed < MEASURE_MS * 1000000L);
+
+		System.out.println(String.format("%-28s %10d %12.3f %8d", name, n, elapsed / 1e6 / runs, runs));
+	}
+
+	/**
+	 * Creates n OSMI-shaped bugs with the given geometry type; lines get
+	 * vertices extra vertices
+	 */
+	static ListFeatureCollection createFeatures(String typeName,
+			String geometryType, int n, int vertices) throws Exception {
+		SimpleFeatureType schema = DataUtilities.createType(typeName,
+				"msGeometry:" + geometryType + ":srid=4326,problem_id:String,error_desc:String");
+		SimpleFeatureBuilder builder = new SimpleFeatureBuilder(schema);
+		List<SimpleFeature> list = new ArrayList<SimpleFeature>(n);
+		Random random = new Random(n);
+		for (int i = 0; i < n; ++i) {
+			double x = AREA.getMinX() + random.nextDouble() * AREA.getWidth();
+			double y = AREA.getMinY() + random.nextDouble() * AREA.getHeight();
+			Geometry geom;
+			if (vertices < 2) {
+				geom = geometryFactory.createPoint(new Coordinate(x, y));
+			} else {
+				Coordinate[] coords = new Coordinate[vertices + 1];
+				coords[0] = new Coordinate(x, y);
+				for (int v = 1; v < coords.length; ++v) {
+					coords[v] = new Coordinate(coords[v - 1].x + (random.nextDouble() - 0.5) * 0.002,
+							coords[v - 1].y + (random.nextDouble() - 0.5) * 0.002);
+				}
+				geom = geometryFactory.createLineString(coords);
+			}
+			builder.add(geom);
+			builder.add(String.valueOf(i + 1));
+			builder.add(DESCRIPTIONS[random.nextInt(DESCRIPTIONS.length)]);
+			list.add(builder.buildFeature(typeName + "." + (i + 1)));
+		}
+		return new ListFeatureCollection(schema, list);
+	}
+}
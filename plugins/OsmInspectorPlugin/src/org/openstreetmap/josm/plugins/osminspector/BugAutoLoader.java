@@ -0,0 +1,83 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.Timer;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+
+/**
+ * Keeps the bug layer current while the user pans and zooms. View changes
+ * restart a timer, so a burst of them results in a single import once the
+ * view has settled. That import only fetches tiles nobody has loaded or
+ * claimed yet, and the requests of the previous import the view has moved
+ * away from are canceled.
+ *
+ * Enabled by the preference <code>osmInspector.autoLoad</code> once the
+ * layer exists; <code>osmInspector.autoLoad.delayMs</code> sets the quiet
+ * time before loading and <code>osmInspector.autoLoad.maxDegrees</code> the
+ * largest view that is loaded automatically.
+ *
+ * @author snikhil
+ *
+ */
+public class BugAutoLoader implements ActionListener {
+
+	private final OsmInspectorPlugin plugin;
+	private final Timer timer;
+	private ImportOsmInspectorBugsTask current;
+
+	public BugAutoLoader(OsmInspectorPlugin thePlugin) {
+		plugin = thePlugin;
+		timer = new Timer(Main.pref.getInteger("osmInspector.autoLoad.delayMs", 750), this);
+		timer.setRepeats(false);
+	}
+
+	public static boolean isEnabled() {
+		return Main.pref.getBoolean("osmInspector.autoLoad", false);
+	}
+
+	/**
+	 * Called on every zoom or pan, (re)starts the quiet period
+	 */
+	public void viewChanged() {
+		if (!isEnabled() || plugin.getLayer() == null)
+			return;
+		timer.restart();
+	}
+
+	public void stop() {
+		timer.stop();
+		if (current != null)
+			current.operationCanceled();
+		current = null;
+	}
+
+	/**
+	 * The view has settled, loads its missing tiles in the background
+	 */
+	@Override
+	public void actionPerformed(ActionEvent e) {
+		OsmInspectorLayer layer = plugin.getLayer();
+		if (layer == null || Main.map == null || Main.map.mapView == null)
+			return;
+		Bounds bounds = Main.map.mapView.getLatLonBounds(Main.map.mapView.getBounds());
+		if (current != null)
+			current.retainArea(bounds);
+
+		LatLon min = bounds.getMin();
+		LatLon max = bounds.getMax();
+		double span = Math.max(Math.abs(max.lon() - min.lon()), Math.abs(max.lat() - min.lat()));
+		if (span > Main.pref.getDouble("osmInspector.autoLoad.maxDegrees", 2.0))
+			return;
+
+		current = new ImportOsmInspectorBugsTask(layer,
+				ImportOsmInspectorBugsAction.createClients(bounds, layer),
+				NullProgressMonitor.INSTANCE, true);
+		Main.worker.submit(current);
+	}
+}
@@ -0,0 +1,160 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Aggregates the bugs of one type into grid cells at several levels of
+ * detail, so that zoomed out views can draw one symbol per cell instead of
+ * every bug. The cells follow the {@link TileGrid}, a cell at level z spans
+ * 360 / 2^z degrees. Every added bug updates the count and the centroid of
+ * its cell on all levels, nothing is recomputed when painting.
+ *
+ * @author snikhil
+ *
+ */
+public class BugClusters {
+
+	public static final int MIN_LEVEL = 4;
+	public static final int MAX_LEVEL = 16;
+
+	/**
+	 * The bugs of one grid cell
+	 */
+	public static class Cluster {
+		private int count;
+		private double sumX;
+		private double sumY;
+
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * @return longitude of the mean position of the bugs in the cell
+		 */
+		public double getX() {
+			return sumX / count;
+		}
+
+		/**
+		 * @return latitude of the mean position of the bugs in the cell
+		 */
+		public double getY() {
+			return sumY / count;
+		}
+	}
+
+	// cells of each level, keyed by their packed grid position
+	private final ArrayList<HashMap<Long, Cluster>> levels;
+
+	public BugClusters() {
+		levels = new ArrayList<HashMap<Long, Cluster>>();
+		for (int level = MIN_LEVEL; level <= MAX_LEVEL; ++level) {
+			levels.add(new HashMap<Long, Cluster>());
+		}
+	}
+
+	/**
+	 * Counts a bug at lon/lat x, y into its cell on every level
+	 */
+	public void add(double x, double y) {
+		for (int level = MIN_LEVEL; level <= MAX_LEVEL; ++level) {
+			double deg = TileGrid.Tile.getTileDegrees(level);
+			Long key = key(cell(x + 180.0, deg), cell(y + 90.0, deg));
+			HashMap<Long, Cluster> cells = levels.get(level - MIN_LEVEL);
+			Cluster cluster = cells.get(key);
+			if (cluster == null) {
+				cluster = new Cluster();
+				cells.put(key, cluster);
+			}
+			++cluster.count;
+			cluster.sumX += x;
+			cluster.sumY += y;
+		}
+	}
+
+	/**
+	 * @return the finest level whose cells are at least cellDegrees wide
+	 */
+	public static int getLevel(double cellDegrees) {
+		for (int level = MAX_LEVEL; level > MIN_LEVEL; --level) {
+			if (TileGrid.Tile.getTileDegrees(level) >= cellDegrees)
+				return level;
+		}
+		return MIN_LEVEL;
+	}
+
+	/**
+	 * @return the clusters of the level whose cells intersect the lon/lat
+	 *         area
+	 */
+	public List<Cluster> query(int level, Envelope area) {
+		double deg = TileGrid.Tile.getTileDegrees(level);
+		int minX = cell(area.getMinX() + 180.0, deg);
+		int maxX = cell(area.getMaxX() + 180.0, deg);
+		int minY = cell(area.getMinY() + 90.0, deg);
+		int maxY = cell(area.getMaxY() + 90.0, deg);
+		HashMap<Long, Cluster> cells = levels.get(level - MIN_LEVEL);
+
+		List<Cluster> result = new ArrayList<Cluster>();
+		long range = (long) (maxX - minX + 1) * (maxY - minY + 1);
+		if (range <= cells.size()) {
+			// look up the cells of the area
+			for (int y = minY; y <= maxY; ++y) {
+				for (int x = minX; x <= maxX; ++x) {
+					Cluster cluster = cells.get(key(x, y));
+					if (cluster != null)
+						result.add(cluster);
+				}
+			}
+		} else {
+			// fewer occupied cells than cells in the area
+			for (Cluster cluster : cells.values()) {
+				int x = cell(cluster.getX() + 180.0, deg);
+				int y = cell(cluster.getY() + 90.0, deg);
+				if (x >= minX && x <= maxX && y >= minY && y <= maxY)
+					result.add(cluster);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the clusters of several parts combined, the bugs of one cell
+	 *         are counted in a single cluster
+	 */
+	public static List<Cluster> query(List<BugClusters> parts, int level, Envelope area) {
+		if (parts.size() == 1)
+			return parts.get(0).query(level, area);
+		double deg = TileGrid.Tile.getTileDegrees(level);
+		LinkedHashMap<Long, Cluster> cells = new LinkedHashMap<Long, Cluster>();
+		for (BugClusters part : parts) {
+			for (Cluster cluster : part.query(level, area)) {
+				// the mean position always lies inside the cell
+				Long key = key(cell(cluster.getX() + 180.0, deg), cell(cluster.getY() + 90.0, deg));
+				Cluster sum = cells.get(key);
+				if (sum == null) {
+					sum = new Cluster();
+					cells.put(key, sum);
+				}
+				sum.count += cluster.count;
+				sum.sumX += cluster.sumX;
+				sum.sumY += cluster.sumY;
+			}
+		}
+		return new ArrayList<Cluster>(cells.values());
+	}
+
+	private static int cell(double offset, double deg) {
+		return (int) Math.floor(offset / deg);
+	}
+
+	private static Long key(int x, int y) {
+		return Long.valueOf(((long) x << 32) | (y & 0xffffffffL));
+	}
+}
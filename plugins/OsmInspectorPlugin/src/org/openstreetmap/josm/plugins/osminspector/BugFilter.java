@@ -0,0 +1,193 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.factory.GeoTools;
+import org.geotools.filter.text.cql2.CQL;
+import org.geotools.filter.text.cql2.CQLException;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.openstreetmap.josm.Main;
+
+/**
+ * Restricts what is requested from the OSMI WFS servers, so the servers
+ * send less data and fewer attributes have to be parsed:
+ * <ul>
+ * <li>only the types whose name matches one of the patterns of
+ * <code>osmInspector.filter.types</code> are requested, e.g.
+ * <code>unconnected_major.*</code> for the major routing errors only;
+ * empty requests all types</li>
+ * <li>the CQL filter <code>osmInspector.filter.cql</code>, e.g.
+ * <code>error_desc LIKE '%highway%'</code>, is sent along with the bbox;
+ * types lacking an attribute it refers to are not requested at all, their
+ * bugs could not be filtered</li>
+ * <li>with <code>osmInspector.filter.ageAttribute</code> and
+ * <code>osmInspector.filter.maxAgeDays</code> only bugs whose date attribute
+ * is at most that old are requested</li>
+ * <li>only the geometry, problem_id and error_desc are transferred</li>
+ * </ul>
+ * The OSMI types differ in their columns, so the date limit is only sent
+ * for types having the date attribute and left out for the others.
+ *
+ * @author snikhil
+ *
+ */
+public class BugFilter {
+
+	/** the attributes the layer uses besides the geometry */
+	public static final String[] PROPERTIES = { "problem_id", "error_desc" };
+
+	private static final long DAY = 24L * 60L * 60L * 1000L;
+
+	private final List<Pattern> typePatterns;
+	private final Filter attributeFilter;
+	private final String ageAttribute;
+	private final int maxAgeDays;
+	private final String key;
+
+	/**
+	 * @return the filter configured in the preferences
+	 */
+	public static BugFilter fromPreferences() {
+		return new BugFilter(
+				Main.pref.getCollection("osmInspector.filter.types", Collections.<String> emptyList()),
+				Main.pref.get("osmInspector.filter.cql", ""),
+				Main.pref.get("osmInspector.filter.ageAttribute", ""),
+				Main.pref.getInteger("osmInspector.filter.maxAgeDays", 0));
+	}
+
+	/**
+	 * @param types
+	 *            regular expressions of the type names to request, all types
+	 *            if empty
+	 * @param cql
+	 *            attribute filter in CQL, or empty
+	 * @param ageAttribute
+	 *            date attribute limited by maxAgeDays, or empty
+	 * @param maxAgeDays
+	 *            greatest age of the requested bugs, 0 for any age
+	 */
+	public BugFilter(Collection<String> types, String cql, String ageAttribute, int maxAgeDays) {
+		typePatterns = new ArrayList<Pattern>();
+		for (String type : types) {
+			try {
+				typePatterns.add(Pattern.compile(type));
+			} catch (PatternSyntaxException e) {
+				e.printStackTrace();
+			}
+		}
+
+		Filter filter = null;
+		if (cql != null && cql.trim().length() > 0) {
+			try {
+				filter = CQL.toFilter(cql);
+			} catch (CQLException e) {
+				// requesting everything beats requesting nothing
+				e.printStackTrace();
+			}
+		}
+		attributeFilter = filter;
+		this.ageAttribute = ageAttribute == null ? "" : ageAttribute.trim();
+		this.maxAgeDays = this.ageAttribute.length() > 0 ? Math.max(0, maxAgeDays) : 0;
+
+		// identifies the cached tiles of this filter, the projection is part
+		// of it so tiles cached with all attributes are not mixed in
+		StringBuilder sb = new StringBuilder("p");
+		for (String property : PROPERTIES) {
+			sb.append(',').append(property);
+		}
+		if (attributeFilter != null)
+			sb.append(";q=").append(cql.trim());
+		if (this.maxAgeDays > 0)
+			sb.append(";a=").append(this.ageAttribute).append('<').append(this.maxAgeDays);
+		key = Integer.toHexString(sb.toString().hashCode());
+	}
+
+	/**
+	 * @return <code>true</code> if the bugs of the type are requested at all
+	 */
+	public boolean acceptsType(String typeName) {
+		if (typePatterns.isEmpty())
+			return true;
+		for (Pattern pattern : typePatterns) {
+			if (pattern.matcher(typeName).matches())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return <code>false</code> if the CQL filter refers to attributes the
+	 *         type lacks; such types are skipped rather than requested
+	 *         unfiltered
+	 */
+	public boolean acceptsSchema(SimpleFeatureType schema) {
+		return attributeFilter == null
+				|| hasAttributes(schema, DataUtilities.attributeNames(attributeFilter));
+	}
+
+	/**
+	 * @return the bbox filter, combined with the attribute filters;
+	 *         {@link Filter#EXCLUDE} for a type not accepted by
+	 *         {@link #acceptsSchema(SimpleFeatureType)}
+	 */
+	public Filter createFilter(SimpleFeatureType schema, ReferencedEnvelope bbox) {
+		if (!acceptsSchema(schema))
+			return Filter.EXCLUDE;
+		FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2(GeoTools.getDefaultHints());
+		String geomName = schema.getGeometryDescriptor() != null
+				? schema.getGeometryDescriptor().getLocalName()
+				: schema.getAttributeDescriptors().get(0).getLocalName();
+		List<Filter> filters = new ArrayList<Filter>();
+		filters.add(ff.bbox(ff.property(geomName), bbox));
+		if (attributeFilter != null)
+			filters.add(attributeFilter);
+		if (maxAgeDays > 0 && schema.getDescriptor(ageAttribute) != null) {
+			Date oldest = new Date(System.currentTimeMillis() - maxAgeDays * DAY);
+			filters.add(ff.greaterOrEqual(ff.property(ageAttribute), ff.literal(oldest)));
+		}
+		return filters.size() == 1 ? filters.get(0) : ff.and(filters);
+	}
+
+	/**
+	 * @return the attributes to transfer, the geometry first
+	 */
+	public String[] getPropertyNames(SimpleFeatureType schema) {
+		List<String> names = new ArrayList<String>();
+		if (schema.getGeometryDescriptor() != null)
+			names.add(schema.getGeometryDescriptor().getLocalName());
+		else
+			names.add(schema.getAttributeDescriptors().get(0).getLocalName());
+		for (String property : PROPERTIES) {
+			if (schema.getDescriptor(property) != null)
+				names.add(property);
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * @return short text identifying the filter, to keep the disk cache
+	 *         entries of different filters apart
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	private static boolean hasAttributes(SimpleFeatureType schema, String[] names) {
+		for (String name : names) {
+			if (schema.getDescriptor(name) == null)
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,164 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.geotools.styling.Style;
+import org.opengis.filter.identity.FeatureId;
+import org.openstreetmap.josm.plugins.osminspector.OsmInspectorLayer.BugIndex;
+
+/**
+ * Everything {@link OsmInspectorLayer} shows: the bugs of each type with
+ * their selection and style, and the index behind the bug list. A state is
+ * never changed. Merges and selections build a new state with a higher
+ * version which the layer publishes as a whole, so painting and selection
+ * always read a consistent state without locking.
+ *
+ * @author snikhil
+ *
+ */
+public final class BugLayerState {
+
+	/**
+	 * The bugs of one type of one view
+	 */
+	public static final class Entry {
+		private final String typeKey;
+		private final BugSet bugs;
+		private final Set<FeatureId> selected;
+		private final Style style;
+
+		private Entry(String typeKey, BugSet bugs, Set<FeatureId> selected) {
+			this.typeKey = typeKey;
+			this.bugs = bugs;
+			this.selected = selected;
+			style = BugStyle.get(bugs.getTypeName()).getStyle(selected);
+		}
+
+		/**
+		 * @return the view/type key, see
+		 *         {@link GeoFabrikWFSClient#getTypeKey(String)}
+		 */
+		public String getTypeKey() {
+			return typeKey;
+		}
+
+		public String getTypeName() {
+			return bugs.getTypeName();
+		}
+
+		public BugSet getBugs() {
+			return bugs;
+		}
+
+		/**
+		 * @return the ids of the selected bugs, not modifiable
+		 */
+		public Set<FeatureId> getSelected() {
+			return selected;
+		}
+
+		/**
+		 * @return the style highlighting the selected bugs
+		 */
+		public Style getStyle() {
+			return style;
+		}
+	}
+
+	private final long version;
+	private final List<Entry> entries;
+	private final BugIndex index;
+
+	/**
+	 * Creates the state of an empty layer
+	 */
+	public BugLayerState() {
+		this(0, Collections.<Entry> emptyList(), new BugIndex().freeze());
+	}
+
+	private BugLayerState(long version, List<Entry> entries, BugIndex index) {
+		this.version = version;
+		this.entries = entries;
+		this.index = index;
+	}
+
+	/**
+	 * @return a new state with the bugs of a type replaced, a type not in
+	 *         this state yet is appended; the selection is kept
+	 */
+	public BugLayerState withBugs(String typeKey, BugSet bugs, BugIndex index) {
+		List<Entry> next = new ArrayList<Entry>(entries);
+		int idx = indexOf(typeKey);
+		if (idx < 0) {
+			next.add(new Entry(typeKey, bugs, Collections.<FeatureId> emptySet()));
+		} else {
+			Entry old = entries.get(idx);
+			next.set(idx, new Entry(typeKey, bugs, old.selected));
+		}
+		return new BugLayerState(version + 1, Collections.unmodifiableList(next), index);
+	}
+
+	/**
+	 * @return a new state with the selection of the types in the map
+	 *         replaced
+	 */
+	public BugLayerState withSelection(Map<String, Set<FeatureId>> selections) {
+		List<Entry> next = new ArrayList<Entry>(entries);
+		for (Map.Entry<String, Set<FeatureId>> selection : selections.entrySet()) {
+			int idx = indexOf(selection.getKey());
+			if (idx >= 0) {
+				next.set(idx, new Entry(selection.getKey(), entries.get(idx).bugs,
+						Collections.unmodifiableSet(selection.getValue())));
+			}
+		}
+		return new BugLayerState(version + 1, Collections.unmodifiableList(next), index);
+	}
+
+	/**
+	 * @return the position of the type in {@link #getEntries()} or -1
+	 */
+	public int indexOf(String typeKey) {
+		for (int idx = 0; idx < entries.size(); ++idx) {
+			if (entries.get(idx).typeKey.equals(typeKey))
+				return idx;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return increases with every new state of a layer
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the types in loading order, not modifiable
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return the bugs of all types, as listed in the bug list
+	 */
+	public BugIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the bugs keyed by their view/type key, in loading order
+	 */
+	public Map<String, BugSet> getBugSets() {
+		LinkedHashMap<String, BugSet> bugSets = new LinkedHashMap<String, BugSet>();
+		for (Entry entry : entries) {
+			bugSets.put(entry.typeKey, entry.bugs);
+		}
+		return bugSets;
+	}
+}
@@ -0,0 +1,224 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Set;
+
+import org.opengis.filter.identity.FeatureId;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.projection.Projection;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Draws the bugs of the simple OSMI styles straight from their projected
+ * coordinates, without the style evaluation and feature iteration of the
+ * StreamingRenderer: points as the rasterized marks of {@link BugStyle},
+ * lines batched into one path per colour. Marks falling on a pixel already
+ * holding the same mark are skipped. Used by {@link OsmInspectorLayer}
+ * when <code>osmInspector.render.direct</code> is set.
+ *
+ * @author snikhil
+ *
+ */
+public class BugPainter {
+
+	private final Graphics2D g;
+	private final Projection projection;
+	private final double originEast;
+	private final double originNorth;
+	private final double scale;
+	private final int width;
+	private final int height;
+
+	/**
+	 * @param g
+	 *            draws the bugs
+	 * @param projection
+	 *            the projection of the view
+	 * @param origin
+	 *            the east/north of the upper left corner of the view
+	 * @param scale
+	 *            east/north units per pixel
+	 * @param width
+	 *            width of the view in pixels
+	 * @param height
+	 *            height of the view in pixels
+	 */
+	public BugPainter(Graphics2D g, Projection projection, EastNorth origin,
+			double scale, int width, int height) {
+		this.g = g;
+		this.projection = projection;
+		originEast = origin.east();
+		originNorth = origin.north();
+		this.scale = scale;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * @return <code>true</code> if the style of the type can be drawn
+	 */
+	public boolean canPaint(String typeName) {
+		return BugStyle.get(typeName).isSimple();
+	}
+
+	/**
+	 * Draws the bugs of one type in the view, the selected ones on top
+	 *
+	 * @param level
+	 *            the simplification level, see {@link BugSet#getLevel(double)}
+	 */
+	public void paint(BugSet bugs, Set<FeatureId> selected, int level) {
+		paint(bugs, selected, level, false);
+	}
+
+	/**
+	 * Draws only the selected bugs in the view, over bugs painted before
+	 * without selection
+	 */
+	public void paintSelected(BugSet bugs, Set<FeatureId> selected, int level) {
+		if (!selected.isEmpty())
+			paint(bugs, selected, level, true);
+	}
+
+	private void paint(BugSet bugs, Set<FeatureId> selected, int level, boolean onlySelected) {
+		BugStyle style = BugStyle.get(bugs.getTypeName());
+		// bugs just outside the view may still reach in with their mark
+		int margin = style.getGeomType() == BugStyle.GeomType.POINT
+				? style.getSprite(true).getWidth() : 1;
+		Envelope area = new Envelope(originEast - margin * scale,
+				originEast + (width + margin) * scale,
+				originNorth - (height + margin) * scale,
+				originNorth + margin * scale);
+
+		if (style.getGeomType() == BugStyle.GeomType.POINT)
+			paintPoints(bugs, selected, level, area, style, onlySelected);
+		else
+			paintLines(bugs, selected, level, area, style, onlySelected);
+	}
+
+	private void paintPoints(BugSet bugs, Set<FeatureId> selected, int level,
+			Envelope area, BugStyle style, boolean onlySelected) {
+		BufferedImage sprite = style.getSprite(false);
+		BufferedImage selectedSprite = style.getSprite(true);
+		int half = sprite.getWidth() / 2;
+		int selectedHalf = selectedSprite.getWidth() / 2;
+		// the pixels already holding an unselected mark, with a margin of
+		// half a mark on each side
+		int stride = width + 2 * half;
+		BitSet drawn = new BitSet(stride * (height + 2 * half));
+		double[] anchor = new double[2];
+		int[] selectedPoints = new int[16];
+		int selectedCount = 0;
+
+		for (ProjectedBugs projected : bugs.getProjected(projection, level)) {
+			for (int bug : projected.query(area)) {
+				getAnchor(projected, bug, anchor);
+				int x = (int) Math.floor((anchor[0] - originEast) / scale);
+				int y = (int) Math.floor((originNorth - anchor[1]) / scale);
+				if (!selected.isEmpty() && selected.contains(projected.getFeature(bug).getIdentifier())) {
+					if (2 * selectedCount + 2 > selectedPoints.length)
+						selectedPoints = Arrays.copyOf(selectedPoints, 2 * selectedPoints.length);
+					selectedPoints[2 * selectedCount] = x;
+					selectedPoints[2 * selectedCount + 1] = y;
+					++selectedCount;
+					continue;
+				}
+				if (onlySelected)
+					continue;
+				if (x < -half || x >= width + half || y < -half || y >= height + half)
+					continue;
+				int pixel = (y + half) * stride + x + half;
+				if (drawn.get(pixel))
+					continue;
+				drawn.set(pixel);
+				g.drawImage(sprite, x - half, y - half, null);
+			}
+		}
+		for (int i = 0; i < selectedCount; ++i) {
+			g.drawImage(selectedSprite, selectedPoints[2 * i] - selectedHalf,
+					selectedPoints[2 * i + 1] - selectedHalf, null);
+		}
+	}
+
+	/**
+	 * Places the mark of a bug like the StreamingRenderer does for a point
+	 * symbolizer: on the point, or in the middle of other geometries
+	 */
+	private static void getAnchor(ProjectedBugs projected, int bug, double[] anchor) {
+		int start = projected.getPartStart(projected.getFirstPart(bug));
+		int end = projected.getPartEnd(projected.getEndPart(bug) - 1);
+		double minEast = Double.POSITIVE_INFINITY;
+		double maxEast = Double.NEGATIVE_INFINITY;
+		double minNorth = Double.POSITIVE_INFINITY;
+		double maxNorth = Double.NEGATIVE_INFINITY;
+		for (int v = start; v < end; ++v) {
+			minEast = Math.min(minEast, projected.getEast(v));
+			maxEast = Math.max(maxEast, projected.getEast(v));
+			minNorth = Math.min(minNorth, projected.getNorth(v));
+			maxNorth = Math.max(maxNorth, projected.getNorth(v));
+		}
+		anchor[0] = (minEast + maxEast) / 2;
+		anchor[1] = (minNorth + maxNorth) / 2;
+	}
+
+	private void paintLines(BugSet bugs, Set<FeatureId> selected, int level,
+			Envelope area, BugStyle style, boolean onlySelected) {
+		Path2D.Double path = new Path2D.Double();
+		Path2D.Double selectedPath = null;
+
+		for (ProjectedBugs projected : bugs.getProjected(projection, level)) {
+			for (int bug : projected.query(area)) {
+				Path2D.Double target = path;
+				if (!selected.isEmpty() && selected.contains(projected.getFeature(bug).getIdentifier())) {
+					if (selectedPath == null)
+						selectedPath = new Path2D.Double();
+					target = selectedPath;
+				} else if (onlySelected) {
+					continue;
+				}
+				appendBug(target, projected, bug);
+			}
+		}
+
+		g.setStroke(new BasicStroke(BugStyle.getLineWidth()));
+		if (!onlySelected) {
+			g.setColor(style.getFill());
+			g.draw(path);
+		}
+		if (selectedPath != null) {
+			g.setColor(BugStyle.getSelectedColour());
+			g.draw(selectedPath);
+		}
+	}
+
+	/**
+	 * Adds the parts of the bug in pixels, leaving out vertices on the same
+	 * pixel as the previous one
+	 */
+	private void appendBug(Path2D.Double path, ProjectedBugs projected, int bug) {
+		for (int part = projected.getFirstPart(bug); part < projected.getEndPart(bug); ++part) {
+			int start = projected.getPartStart(part);
+			int end = projected.getPartEnd(part);
+			if (end - start < 2)
+				continue;
+			double lastX = (projected.getEast(start) - originEast) / scale;
+			double lastY = (originNorth - projected.getNorth(start)) / scale;
+			path.moveTo(lastX, lastY);
+			for (int v = start + 1; v < end; ++v) {
+				double x = (projected.getEast(v) - originEast) / scale;
+				double y = (originNorth - projected.getNorth(v)) / scale;
+				if (v < end - 1 && Math.abs(x - lastX) < 1 && Math.abs(y - lastY) < 1)
+					continue;
+				path.lineTo(x, y);
+				lastX = x;
+				lastY = y;
+			}
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.Timer;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.plugins.osminspector.OsmInspectorLayer.BugInfo;
+
+/**
+ * Loads the bugs of the area the user is expected to look at next before
+ * they get there. The area is predicted from the recent movement of the
+ * view, one view ahead in the direction of the panning, and from the bug
+ * list, around the bug after the one next or prev has just shown.
+ *
+ * The tiles of the prediction are fetched one by one on threads of low
+ * priority and merged into the layer like those of an import. A tile is
+ * only claimed when its fetch starts, so imports the user starts are never
+ * kept waiting for more than the tiles in flight. While an import runs,
+ * when a newer prediction arrives or when the bandwidth budget is spent,
+ * the remaining tiles are dropped.
+ *
+ * Enabled by the preference <code>osmInspector.prefetch</code>;
+ * <code>osmInspector.prefetch.maxParallel</code> sets the requests running
+ * at the same time, <code>osmInspector.prefetch.maxKBytesPerMinute</code>
+ * the data downloaded per minute and
+ * <code>osmInspector.prefetch.delayMs</code> the quiet time after a view
+ * change before predicting.
+ *
+ * @author snikhil
+ *
+ */
+public class BugPrefetcher implements ActionListener {
+
+	// views older than this do not count as recent movement
+	private static final long HISTORY_MS = 2000;
+	private static final int HISTORY_SIZE = 8;
+	// moves of less than this part of the view are no panning
+	private static final double MIN_MOVE = 0.1;
+	// views whose size changed by more than this factor were zoomed
+	private static final double MAX_ZOOM_CHANGE = 1.5;
+	private static final long MINUTE = 60L * 1000L;
+	// tiles remembered as too large, the oldest are tried again
+	private static final int MAX_SKIPPED = 256;
+
+	private final OsmInspectorLayer layer;
+	private final Timer timer;
+	private final int maxParallel;
+	private final long maxBytesPerMinute;
+	private ExecutorService executor;
+
+	// recent views, the newest last; only used on the event dispatch thread
+	private final LinkedList<View> history = new LinkedList<View>();
+	// increased by every prediction, the tiles of older ones are dropped
+	private volatile int generation;
+	// tiles that are too large to be prefetched, the import splits them
+	private final Set<String> skipped = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_SKIPPED;
+		}
+	});
+	private long windowStart;
+	private long windowBytes;
+
+	/**
+	 * The view at some time
+	 */
+	private static class View {
+		private final double lon;
+		private final double lat;
+		private final double width;
+		private final double height;
+		private final long time;
+
+		View(Bounds bounds, long time) {
+			LatLon min = bounds.getMin();
+			LatLon max = bounds.getMax();
+			lon = (min.lon() + max.lon()) / 2;
+			lat = (min.lat() + max.lat()) / 2;
+			width = Math.abs(max.lon() - min.lon());
+			height = Math.abs(max.lat() - min.lat());
+			this.time = time;
+		}
+
+		Bounds getBounds(double centreLon, double centreLat) {
+			return new Bounds(new LatLon(centreLat - height / 2, centreLon - width / 2),
+					new LatLon(centreLat + height / 2, centreLon + width / 2));
+		}
+	}
+
+	public BugPrefetcher(OsmInspectorLayer theLayer) {
+		layer = theLayer;
+		maxParallel = Math.max(1, Main.pref.getInteger("osmInspector.prefetch.maxParallel", 1));
+		maxBytesPerMinute = 1024L * Main.pref.getInteger("osmInspector.prefetch.maxKBytesPerMinute", 2048);
+		timer = new Timer(Main.pref.getInteger("osmInspector.prefetch.delayMs", 500), this);
+		timer.setRepeats(false);
+	}
+
+	public static boolean isEnabled() {
+		return Main.pref.getBoolean("osmInspector.prefetch", false);
+	}
+
+	/**
+	 * Called on every zoom or pan, records the view and predicts once the
+	 * view has settled
+	 */
+	public void viewChanged() {
+		if (!isEnabled() || Main.map == null || Main.map.mapView == null)
+			return;
+		long now = System.currentTimeMillis();
+		history.add(new View(Main.map.mapView.getLatLonBounds(Main.map.mapView.getBounds()), now));
+		while (history.size() > HISTORY_SIZE || now - history.getFirst().time > HISTORY_MS)
+			history.removeFirst();
+		timer.restart();
+	}
+
+	/**
+	 * Called by the bug list after moving to a bug, prefetches the view
+	 * around the bug that comes next
+	 */
+	public void navigated(BugInfo upcoming) {
+		if (!isEnabled() || upcoming == null || history.isEmpty())
+			return;
+		// the jump to the bug is no panning
+		timer.stop();
+		View last = history.getLast();
+		history.clear();
+		history.add(last);
+		LatLon centre = upcoming.getCentroid();
+		prefetch(last.getBounds(centre.lon(), centre.lat()));
+	}
+
+	/**
+	 * The view has settled, prefetches one view ahead if it was panned
+	 */
+	@Override
+	public void actionPerformed(ActionEvent e) {
+		if (history.size() < 2)
+			return;
+		View first = history.getFirst();
+		View last = history.getLast();
+		double ratio = last.width / first.width;
+		if (ratio > MAX_ZOOM_CHANGE || ratio < 1 / MAX_ZOOM_CHANGE)
+			return;
+		double dx = (last.lon - first.lon) / last.width;
+		double dy = (last.lat - first.lat) / last.height;
+		double distance = Math.sqrt(dx * dx + dy * dy);
+		if (distance < MIN_MOVE)
+			return;
+		// one view further in the direction of the movement
+		prefetch(last.getBounds(last.lon + dx / distance * last.width,
+				last.lat + dy / distance * last.height));
+	}
+
+	public void stop() {
+		timer.stop();
+		++generation;
+		synchronized (this) {
+			if (executor != null)
+				executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Queues the tiles of the area missing in the layer, dropping those of
+	 * the previous prediction
+	 */
+	private void prefetch(final Bounds area) {
+		final int current = ++generation;
+		getExecutor().execute(new Runnable() {
+			public void run() {
+				// the type names usually come from the registry
+				for (final GeoFabrikWFSClient client : ImportOsmInspectorBugsAction.createClients(area, layer)) {
+					String[] typeNames;
+					try {
+						typeNames = client.getTypeNames();
+					} catch (Exception e) {
+						continue;
+					}
+					// the first type is not a bug layer, see OsmInspectorLayer
+					for (int idx = 1; idx < typeNames.length && current == generation; ++idx) {
+						if (!client.acceptsType(typeNames[idx]))
+							continue;
+						final String typeName = typeNames[idx];
+						String typeKey = client.getTypeKey(typeName);
+						for (final TileGrid.Tile tile : layer.getTileGrid().getMissingTiles(typeKey, area)) {
+							if (current != generation)
+								return;
+							getExecutor().execute(new Runnable() {
+								public void run() {
+									fetch(current, client, typeName, tile);
+								}
+							});
+						}
+					}
+				}
+			}
+		});
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(maxParallel, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "OsmInspector-prefetch");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Fetches one tile of a prediction unless it is outdated, an import is
+	 * running or the budget is spent
+	 */
+	private void fetch(int current, GeoFabrikWFSClient client, String typeName, TileGrid.Tile tile) {
+		String typeKey = client.getTypeKey(typeName);
+		if (current != generation || ImportOsmInspectorBugsTask.isRunning()
+				|| !hasBudget() || isSkipped(typeKey, tile))
+			return;
+		TileGrid grid = layer.getTileGrid();
+		if (!grid.claimTile(typeKey, tile))
+			return;
+		boolean loaded = false;
+		try {
+			GeoFabrikWFSClient.TileFeatures result = client.fetchTile(typeName, tile);
+			// incomplete tiles count with their estimated size
+			spend(result.getBytes());
+			layer.loadFeatures(typeKey, typeName, result.getFeatures());
+			if (result.isComplete()) {
+				grid.markLoaded(typeKey, tile);
+				loaded = true;
+			} else {
+				// splitting is left to the imports
+				skip(typeKey, tile);
+			}
+		} catch (Exception e) {
+			// a prefetch failing does no harm, the import tries again; those
+			// interrupted by stop() are no failures
+			if (current == generation) {
+				e.printStackTrace();
+				OsmInspectorMetrics.getInstance().increment(OsmInspectorMetrics.WFS_FAILURES, 1);
+			}
+		} finally {
+			if (!loaded)
+				grid.release(typeKey, tile);
+		}
+	}
+
+	private synchronized boolean hasBudget() {
+		long now = System.currentTimeMillis();
+		if (now - windowStart > MINUTE) {
+			windowStart = now;
+			windowBytes = 0;
+		}
+		return windowBytes < maxBytesPerMinute;
+	}
+
+	private synchronized void spend(long bytes) {
+		windowBytes += bytes;
+	}
+
+	private synchronized boolean isSkipped(String typeKey, TileGrid.Tile tile) {
+		return skipped.contains(typeKey + "/" + tile.getKey());
+	}
+
+	private synchronized void skip(String typeKey, TileGrid.Tile tile) {
+		skipped.add(typeKey + "/" + tile.getKey());
+	}
+}
@@ -0,0 +1,367 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.openstreetmap.josm.data.projection.Projection;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
+
+/**
+ * An immutable set of bugs of one OSMI type, as published by
+ * {@link OSMIFeatureTracker}. Painting and selection may query it from any
+ * thread while the tracker builds the next set.
+ *
+ * The bugs are kept in chunks whose spatial index and clusters are built
+ * once. Appending bugs creates a new set sharing the old chunks; chunks are
+ * merged while a chunk is not at least twice as large as the next one, so
+ * a set has O(log n) chunks.
+ *
+ * Each chunk also keeps the bugs with Douglas-Peucker simplified geometries
+ * for a few {@link #TOLERANCES}, computed once when the bugs arrive. Views
+ * with fewer pixels per degree paint those, so long lines such as the
+ * duplicate_ways bugs are not stroked with all their vertices.
+ *
+ * The coordinates of each chunk and level are projected into JOSM's
+ * east/north space when first needed and kept until the projection
+ * changes, see {@link ProjectedBugs}.
+ *
+ * @author snikhil
+ *
+ */
+public final class BugSet {
+
+	/** simplification tolerances in degrees, each level about 5 times coarser */
+	public static final double[] TOLERANCES = { 0.00002, 0.0001, 0.0005, 0.0025 };
+
+	// appends whose bounds are remembered, see getAppendedSince
+	private static final int APPEND_HISTORY = 16;
+
+	private final String typeName;
+	private final SimpleFeatureType schema;
+	private final Chunk[] chunks;
+	private final int size;
+	// shared by a set and all sets appended to it
+	private final Object lineage;
+	// the number of appends since the empty set
+	private final int generation;
+	// lon/lat bounds of the bugs of the last appends, the newest last
+	private final Envelope[] appended;
+
+	private static final class Chunk {
+		private final SimpleFeature[] features;
+		// the features simplified for each tolerance, the same object where
+		// simplifying does not save vertices
+		private final SimpleFeature[][] generalized;
+		// holds the positions in features
+		private final STRtree index;
+		private final BugClusters clusters;
+		// the projected coordinates of features and of each generalized
+		// level, all in the same projection; replaced as a whole when the
+		// projection changes, concurrent painters at worst project twice
+		private volatile ProjectedBugs[] projected = new ProjectedBugs[TOLERANCES.length + 1];
+
+		Chunk(SimpleFeature[] features) {
+			this(features, generalize(features));
+		}
+
+		private Chunk(SimpleFeature[] features, SimpleFeature[][] generalized) {
+			this.features = features;
+			this.generalized = generalized;
+			index = new STRtree();
+			clusters = new BugClusters();
+			for (int i = 0; i < features.length; ++i) {
+				// a bug without a position is neither found nor clustered
+				if (!hasPosition(features[i]))
+					continue;
+				Envelope envelope = ((Geometry) features[i].getDefaultGeometry()).getEnvelopeInternal();
+				index.insert(envelope, Integer.valueOf(i));
+				clusters.add((envelope.getMinX() + envelope.getMaxX()) / 2,
+						(envelope.getMinY() + envelope.getMaxY()) / 2);
+			}
+			// built here, queries never modify the tree afterwards
+			index.build();
+		}
+
+		/**
+		 * @return the features of the level, -1 for the full geometries, in
+		 *         the projection
+		 */
+		ProjectedBugs getProjected(Projection projection, int level) {
+			ProjectedBugs[] cached = projected;
+			ProjectedBugs bugs = cached[level + 1];
+			if (bugs != null && bugs.getProjection() == projection)
+				return bugs;
+			bugs = ProjectedBugs.project(level < 0 ? features : generalized[level], projection);
+			ProjectedBugs[] next = new ProjectedBugs[cached.length];
+			for (int i = 0; i < cached.length; ++i) {
+				if (cached[i] != null && cached[i].getProjection() == projection)
+					next[i] = cached[i];
+			}
+			next[level + 1] = bugs;
+			projected = next;
+			return bugs;
+		}
+
+		/**
+		 * Keeps the simplified features of both chunks, only the index and
+		 * the clusters are built again
+		 */
+		static Chunk merge(Chunk a, Chunk b) {
+			SimpleFeature[][] generalized = new SimpleFeature[TOLERANCES.length][];
+			for (int level = 0; level < TOLERANCES.length; ++level) {
+				generalized[level] = concat(a.generalized[level], b.generalized[level]);
+			}
+			return new Chunk(concat(a.features, b.features), generalized);
+		}
+
+		private static SimpleFeature[] concat(SimpleFeature[] a, SimpleFeature[] b) {
+			SimpleFeature[] features = Arrays.copyOf(a, a.length + b.length);
+			System.arraycopy(b, 0, features, a.length, b.length);
+			return features;
+		}
+
+		/**
+		 * Simplifies every level from the previous one, which is cheaper than
+		 * starting from the full geometry and deviates by at most the sum of
+		 * the tolerances
+		 */
+		private static SimpleFeature[][] generalize(SimpleFeature[] features) {
+			SimpleFeature[][] generalized = new SimpleFeature[TOLERANCES.length][];
+			SimpleFeature[] previous = features;
+			for (int level = 0; level < TOLERANCES.length; ++level) {
+				generalized[level] = new SimpleFeature[features.length];
+				for (int i = 0; i < features.length; ++i) {
+					generalized[level][i] = simplify(previous[i], TOLERANCES[level]);
+				}
+				previous = generalized[level];
+			}
+			return generalized;
+		}
+
+		private static SimpleFeature simplify(SimpleFeature feature, double tolerance) {
+			Geometry geom = (Geometry) feature.getDefaultGeometry();
+			GeometryDescriptor descriptor = feature.getFeatureType().getGeometryDescriptor();
+			if (geom == null || descriptor == null || geom.getNumPoints() <= 2)
+				return feature;
+			Geometry simplified = DouglasPeuckerSimplifier.simplify(geom, tolerance);
+			if (simplified.isEmpty() || simplified.getNumPoints() >= geom.getNumPoints())
+				return feature;
+			// the copy keeps the feature id, the selection filters apply to it
+			Object[] values = feature.getAttributes().toArray();
+			values[feature.getFeatureType().indexOf(descriptor.getLocalName())] = simplified;
+			return SimpleFeatureBuilder.build(feature.getFeatureType(), values, feature.getID());
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the bug has a geometry that is not empty,
+	 *         only those can be located, indexed and clustered
+	 */
+	public static boolean hasPosition(SimpleFeature feature) {
+		Geometry geom = (Geometry) feature.getDefaultGeometry();
+		return geom != null && !geom.isEmpty();
+	}
+
+	/**
+	 * Creates an empty set
+	 */
+	public BugSet(String typeName, SimpleFeatureType schema) {
+		this(typeName, schema, new Chunk[0], 0, new Object(), 0, new Envelope[0]);
+	}
+
+	private BugSet(String typeName, SimpleFeatureType schema, Chunk[] chunks, int size,
+			Object lineage, int generation, Envelope[] appended) {
+		this.typeName = typeName;
+		this.schema = schema;
+		this.chunks = chunks;
+		this.size = size;
+		this.lineage = lineage;
+		this.generation = generation;
+		this.appended = appended;
+	}
+
+	/**
+	 * @return a new set with the bugs of this one and the added ones, this
+	 *         set is left unchanged
+	 */
+	public BugSet append(List<SimpleFeature> added) {
+		if (added.isEmpty())
+			return this;
+		Chunk[] next = Arrays.copyOf(chunks, chunks.length + 1);
+		int n = next.length;
+		next[n - 1] = new Chunk(added.toArray(new SimpleFeature[added.size()]));
+		while (n > 1 && next[n - 2].features.length < 2 * next[n - 1].features.length) {
+			next[n - 2] = Chunk.merge(next[n - 2], next[n - 1]);
+			--n;
+		}
+		Envelope bounds = new Envelope();
+		for (SimpleFeature feature : added) {
+			Geometry geom = (Geometry) feature.getDefaultGeometry();
+			if (geom != null)
+				bounds.expandToInclude(geom.getEnvelopeInternal());
+		}
+		Envelope[] history = Arrays.copyOfRange(appended,
+				Math.max(0, appended.length - APPEND_HISTORY + 1), appended.length + 1);
+		history[history.length - 1] = bounds;
+		return new BugSet(typeName, schema, Arrays.copyOf(next, n), size + added.size(),
+				lineage, generation + 1, history);
+	}
+
+	/**
+	 * @param older
+	 *            an earlier set this one was appended to, <code>null</code>
+	 *            for the empty set it started from
+	 * @return the lon/lat bounds of the bugs appended since older, one per
+	 *         append; <code>null</code> if older is no ancestor of this set
+	 *         or the appends are too many to be remembered
+	 */
+	public List<Envelope> getAppendedSince(BugSet older) {
+		int since = 0;
+		if (older != null) {
+			if (older.lineage != lineage || older.generation > generation)
+				return null;
+			since = older.generation;
+		}
+		int count = generation - since;
+		if (count > appended.length)
+			return null;
+		return Arrays.asList(appended).subList(appended.length - count, appended.length);
+	}
+
+	/**
+	 * @return the bugs whose geometry intersects the area
+	 */
+	public List<SimpleFeature> query(Geometry area) {
+		List<SimpleFeature> result = new ArrayList<SimpleFeature>();
+		// the tree only filters by envelope
+		for (Chunk chunk : chunks) {
+			for (Object candidate : chunk.index.query(area.getEnvelopeInternal())) {
+				SimpleFeature feature = chunk.features[(Integer) candidate];
+				if (area.intersects((Geometry) feature.getDefaultGeometry()))
+					result.add(feature);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the bugs whose geometry intersects the east/north area of the
+	 *         projection, tested on the coordinates projected once per
+	 *         projection
+	 */
+	public List<SimpleFeature> pick(Projection projection, Envelope area) {
+		List<SimpleFeature> result = new ArrayList<SimpleFeature>();
+		for (Chunk chunk : chunks) {
+			ProjectedBugs projected = chunk.getProjected(projection, -1);
+			for (int position : projected.query(area)) {
+				if (projected.intersects(position, area))
+					result.add(projected.getFeature(position));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the coordinates of the level in the projection, one part per
+	 *         chunk, see {@link #getLevel(double)}
+	 */
+	public List<ProjectedBugs> getProjected(Projection projection, int level) {
+		List<ProjectedBugs> result = new ArrayList<ProjectedBugs>(chunks.length);
+		for (Chunk chunk : chunks) {
+			result.add(chunk.getProjected(projection, level));
+		}
+		return result;
+	}
+
+	/**
+	 * @return the bugs whose bounding box intersects the envelope
+	 */
+	public List<SimpleFeature> query(Envelope envelope) {
+		List<SimpleFeature> result = new ArrayList<SimpleFeature>();
+		for (Chunk chunk : chunks) {
+			for (Object candidate : chunk.index.query(envelope)) {
+				result.add(chunk.features[(Integer) candidate]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the bugs whose bounding box intersects the envelope, simplified
+	 *         by the largest tolerance not above degreesPerPixel
+	 */
+	public List<SimpleFeature> query(Envelope envelope, double degreesPerPixel) {
+		int level = getLevel(degreesPerPixel);
+		if (level < 0)
+			return query(envelope);
+		List<SimpleFeature> result = new ArrayList<SimpleFeature>();
+		for (Chunk chunk : chunks) {
+			SimpleFeature[] generalized = chunk.generalized[level];
+			for (Object candidate : chunk.index.query(envelope)) {
+				result.add(generalized[(Integer) candidate]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the position in {@link #TOLERANCES} of the largest tolerance
+	 *         not above degreesPerPixel, -1 for the full geometries
+	 */
+	public static int getLevel(double degreesPerPixel) {
+		for (int level = TOLERANCES.length - 1; level >= 0; --level) {
+			if (TOLERANCES[level] <= degreesPerPixel)
+				return level;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the clusters of the level intersecting the lon/lat area, see
+	 *         {@link BugClusters#query(int, Envelope)}
+	 */
+	public List<BugClusters.Cluster> queryClusters(int level, Envelope area) {
+		if (chunks.length == 0)
+			return Collections.emptyList();
+		List<BugClusters> parts = new ArrayList<BugClusters>(chunks.length);
+		for (Chunk chunk : chunks) {
+			parts.add(chunk.clusters);
+		}
+		return BugClusters.query(parts, level, area);
+	}
+
+	public String getTypeName() {
+		return typeName;
+	}
+
+	public SimpleFeatureType getSchema() {
+		return schema;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return all bugs of the set in the order they were added
+	 */
+	public FeatureCollection<SimpleFeatureType, SimpleFeature> getFeatures() {
+		List<SimpleFeature> features = new ArrayList<SimpleFeature>(size);
+		for (Chunk chunk : chunks) {
+			features.addAll(Arrays.asList(chunk.features));
+		}
+		return new ListFeatureCollection(schema, features);
+	}
+}
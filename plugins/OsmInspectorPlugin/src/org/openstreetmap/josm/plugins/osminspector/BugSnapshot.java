@@ -0,0 +1,510 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.SchemaException;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+
+/**
+ * Compact binary snapshot of the bugs loaded into the layer, for working
+ * offline and as a fixture for tests and benchmarks. The file is read through
+ * a memory mapping, without any GML or JSON parsing.
+ *
+ * Layout, big endian: magic, version, the dictionary of all bug
+ * descriptions, then one section per view/type holding its type key, type
+ * name and schema, the bug ids, description codes, geometry kinds, vertex
+ * offsets and x/y coordinates as columns, a WKB block for geometries other
+ * than points and line strings, and a uniform grid over the bugs as spatial
+ * index. Only the geometry, problem_id and error_desc of the bugs are kept.
+ *
+ * @author snikhil
+ *
+ */
+public class BugSnapshot {
+
+	private static final int MAGIC = 0x4F534D49; // "OSMI"
+	private static final int VERSION = 1;
+	private static final String CHARSET = "UTF-8";
+
+	private static final byte KIND_POINT = 0;
+	private static final byte KIND_LINE = 1;
+	private static final byte KIND_WKB = 2;
+
+	/** bugs per grid cell the index aims at */
+	private static final int BUGS_PER_CELL = 8;
+	private static final int MAX_GRID_SIZE = 256;
+
+	private final ByteBuffer buffer;
+	private final String[] descriptions;
+	private final List<Section> sections = new ArrayList<Section>();
+	private final GeometryFactory geometryFactory = new GeometryFactory();
+
+	/**
+	 * Writes the bug sets of all types, keyed by their view/type key. Bugs
+	 * with a null or empty geometry are left out, the layer could not import
+	 * them.
+	 *
+	 * @return the number of bugs left out
+	 */
+	public static int write(File file, Map<String, BugSet> bugSets) throws IOException {
+		// the descriptions of all types share one dictionary
+		List<String> dictionary = new ArrayList<String>();
+		Map<String, Integer> codes = new HashMap<String, Integer>();
+		List<SectionWriter> writers = new ArrayList<SectionWriter>();
+		int skipped = 0;
+		for (Map.Entry<String, BugSet> entry : bugSets.entrySet()) {
+			SectionWriter writer = new SectionWriter(entry.getKey(), entry.getValue(), dictionary, codes);
+			writers.add(writer);
+			skipped += writer.skipped;
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(dictionary.size());
+			for (String desc : dictionary) {
+				writeString(out, desc);
+			}
+			out.writeInt(writers.size());
+			for (SectionWriter writer : writers) {
+				writer.write(out);
+			}
+		} finally {
+			out.close();
+		}
+		file.delete();
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Cannot rename " + tmp + " to " + file);
+		}
+		return skipped;
+	}
+
+	/**
+	 * Maps a snapshot file into memory
+	 */
+	public static BugSnapshot open(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			// the mapping stays valid after the channel is closed
+			return new BugSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			in.close();
+		}
+	}
+
+	private BugSnapshot(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.getInt() != MAGIC)
+			throw new IOException("Not an Osm Inspector bug snapshot");
+		int version = buffer.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported bug snapshot version " + version);
+		descriptions = new String[buffer.getInt()];
+		for (int i = 0; i < descriptions.length; ++i) {
+			descriptions[i] = readString(buffer);
+		}
+		int count = buffer.getInt();
+		for (int i = 0; i < count; ++i) {
+			sections.add(new Section());
+		}
+	}
+
+	public int getSectionCount() {
+		return sections.size();
+	}
+
+	public Section getSection(int i) {
+		return sections.get(i);
+	}
+
+	/**
+	 * The bugs of one view/type. The columns are read from the mapped file
+	 * on access, only their positions are kept in memory.
+	 */
+	public class Section {
+		private final String typeKey;
+		private final String typeName;
+		private final String schemaSpec;
+		private final int size;
+		private final Envelope bounds;
+		private final int gridSize;
+		private final int ids;
+		private final int descCodes;
+		private final int kinds;
+		private final int vertexOffsets;
+		private final int coords;
+		private final int wkbOffsets;
+		private final int wkb;
+		private final int cellOffsets;
+		private final int cellItems;
+
+		/**
+		 * Reads the section header at the current position and skips its
+		 * columns
+		 */
+		private Section() {
+			typeKey = readString(buffer);
+			typeName = readString(buffer);
+			schemaSpec = readString(buffer);
+			size = buffer.getInt();
+			int vertexCount = buffer.getInt();
+			int wkbBytes = buffer.getInt();
+			bounds = new Envelope(buffer.getDouble(), buffer.getDouble(),
+					buffer.getDouble(), buffer.getDouble());
+			gridSize = buffer.getInt();
+			int itemCount = buffer.getInt();
+
+			int pos = buffer.position();
+			ids = pos;
+			descCodes = ids + 8 * size;
+			kinds = descCodes + 4 * size;
+			vertexOffsets = kinds + size;
+			coords = vertexOffsets + 4 * (size + 1);
+			wkbOffsets = coords + 16 * vertexCount;
+			wkb = wkbOffsets + 4 * (size + 1);
+			cellOffsets = wkb + wkbBytes;
+			cellItems = cellOffsets + 4 * (gridSize * gridSize + 1);
+			buffer.position(cellItems + 4 * itemCount);
+		}
+
+		public String getTypeKey() {
+			return typeKey;
+		}
+
+		public String getTypeName() {
+			return typeName;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public Envelope getBounds() {
+			return new Envelope(bounds);
+		}
+
+		public long getId(int i) {
+			return buffer.getLong(ids + 8 * i);
+		}
+
+		public String getDesc(int i) {
+			return descriptions[buffer.getInt(descCodes + 4 * i)];
+		}
+
+		public Geometry getGeometry(int i) {
+			byte kind = buffer.get(kinds + i);
+			if (kind == KIND_WKB) {
+				int from = buffer.getInt(wkbOffsets + 4 * i);
+				byte[] bytes = new byte[buffer.getInt(wkbOffsets + 4 * (i + 1)) - from];
+				for (int b = 0; b < bytes.length; ++b) {
+					bytes[b] = buffer.get(wkb + from + b);
+				}
+				try {
+					return new WKBReader(geometryFactory).read(bytes);
+				} catch (ParseException e) {
+					throw new IllegalStateException("Broken geometry in bug snapshot", e);
+				}
+			}
+			int from = buffer.getInt(vertexOffsets + 4 * i);
+			int to = buffer.getInt(vertexOffsets + 4 * (i + 1));
+			Coordinate[] coordinates = new Coordinate[to - from];
+			for (int v = 0; v < coordinates.length; ++v) {
+				int at = coords + 16 * (from + v);
+				coordinates[v] = new Coordinate(buffer.getDouble(at), buffer.getDouble(at + 8));
+			}
+			if (kind == KIND_POINT)
+				return geometryFactory.createPoint(coordinates[0]);
+			return geometryFactory.createLineString(coordinates);
+		}
+
+		/**
+		 * @return the positions of the bugs whose bounding box intersects the
+		 *         lon/lat area, found through the grid index
+		 */
+		public int[] query(Envelope area) {
+			if (size == 0 || !bounds.intersects(area))
+				return new int[0];
+			int minX = cellX(area.getMinX()), maxX = cellX(area.getMaxX());
+			int minY = cellY(area.getMinY()), maxY = cellY(area.getMaxY());
+			BitSet seen = new BitSet(size);
+			int[] result = new int[16];
+			int count = 0;
+			for (int y = minY; y <= maxY; ++y) {
+				for (int x = minX; x <= maxX; ++x) {
+					int cell = y * gridSize + x;
+					int to = buffer.getInt(cellOffsets + 4 * (cell + 1));
+					for (int at = buffer.getInt(cellOffsets + 4 * cell); at < to; ++at) {
+						int i = buffer.getInt(cellItems + 4 * at);
+						if (seen.get(i))
+							continue;
+						seen.set(i);
+						if (!getGeometry(i).getEnvelopeInternal().intersects(area))
+							continue;
+						if (count == result.length) {
+							int[] grown = new int[count * 2];
+							System.arraycopy(result, 0, grown, 0, count);
+							result = grown;
+						}
+						result[count++] = i;
+					}
+				}
+			}
+			int[] trimmed = new int[count];
+			System.arraycopy(result, 0, trimmed, 0, count);
+			return trimmed;
+		}
+
+		private int cellX(double x) {
+			return cell(x, bounds.getMinX(), bounds.getWidth(), gridSize);
+		}
+
+		private int cellY(double y) {
+			return cell(y, bounds.getMinY(), bounds.getHeight(), gridSize);
+		}
+
+		/**
+		 * @return all bugs of the section as features of its schema, ready
+		 *         for {@link OsmInspectorLayer#loadFeatures}
+		 */
+		public FeatureCollection<SimpleFeatureType, SimpleFeature> getFeatures()
+				throws SchemaException {
+			SimpleFeatureType schema = DataUtilities.createType(typeName, schemaSpec);
+			SimpleFeatureBuilder builder = new SimpleFeatureBuilder(schema);
+			String geometryName = schema.getGeometryDescriptor().getLocalName();
+			List<SimpleFeature> list = new ArrayList<SimpleFeature>(size);
+			for (int i = 0; i < size; ++i) {
+				long id = getId(i);
+				builder.set(geometryName, getGeometry(i));
+				builder.set("problem_id", String.valueOf(id));
+				builder.set("error_desc", getDesc(i));
+				list.add(builder.buildFeature(typeName + "." + id));
+			}
+			return new ListFeatureCollection(schema, list);
+		}
+	}
+
+	/**
+	 * Turns a set of bugs into the columns of one section
+	 */
+	private static class SectionWriter {
+		private final String typeKey;
+		private final String typeName;
+		private final String schemaSpec;
+		private final int size;
+		private final long[] ids;
+		private final int[] descCodes;
+		private final byte[] kinds;
+		private final int[] vertexOffsets;
+		private final int[] wkbOffsets;
+		private final Envelope bounds = new Envelope();
+		private final Envelope[] envelopes;
+		// bugs left out as they have no position
+		private final int skipped;
+		private double[] coords = new double[1024];
+		private final ByteArrayOutputStream wkb = new ByteArrayOutputStream();
+
+		SectionWriter(String typeKey, BugSet bugs,
+				List<String> dictionary, Map<String, Integer> codes) {
+			this.typeKey = typeKey;
+			FeatureCollection<SimpleFeatureType, SimpleFeature> features = bugs.getFeatures();
+			typeName = bugs.getTypeName();
+			schemaSpec = DataUtilities.encodeType(features.getSchema());
+			int capacity = bugs.size();
+			long[] ids = new long[capacity];
+			int[] descCodes = new int[capacity];
+			byte[] kinds = new byte[capacity];
+			int[] vertexOffsets = new int[capacity + 1];
+			int[] wkbOffsets = new int[capacity + 1];
+			Envelope[] envelopes = new Envelope[capacity];
+			int skipped = 0;
+
+			WKBWriter wkbWriter = new WKBWriter();
+			int vertices = 0;
+			int i = 0;
+			FeatureIterator<SimpleFeature> it = features.features();
+			try {
+				while (it.hasNext() && i < capacity) {
+					SimpleFeature feature = it.next();
+					// the layer cannot show bugs without a position
+					if (!BugSet.hasPosition(feature)) {
+						++skipped;
+						continue;
+					}
+					ids[i] = Long.parseLong((String) feature.getAttribute("problem_id"));
+					String desc = (String) feature.getAttribute("error_desc");
+					if (desc == null)
+						desc = "";
+					Integer code = codes.get(desc);
+					if (code == null) {
+						code = dictionary.size();
+						dictionary.add(desc);
+						codes.put(desc, code);
+					}
+					descCodes[i] = code;
+
+					Geometry geom = (Geometry) feature.getDefaultGeometry();
+					envelopes[i] = geom.getEnvelopeInternal();
+					bounds.expandToInclude(envelopes[i]);
+					if (geom instanceof Point || geom instanceof LineString) {
+						kinds[i] = geom instanceof Point ? KIND_POINT : KIND_LINE;
+						for (Coordinate c : geom.getCoordinates()) {
+							if (2 * vertices + 2 > coords.length) {
+								double[] grown = new double[coords.length * 2];
+								System.arraycopy(coords, 0, grown, 0, 2 * vertices);
+								coords = grown;
+							}
+							coords[2 * vertices] = c.x;
+							coords[2 * vertices + 1] = c.y;
+							++vertices;
+						}
+						wkbOffsets[i + 1] = wkbOffsets[i];
+					} else {
+						kinds[i] = KIND_WKB;
+						byte[] bytes = wkbWriter.write(geom);
+						wkb.write(bytes, 0, bytes.length);
+						wkbOffsets[i + 1] = wkb.size();
+					}
+					vertexOffsets[i + 1] = vertices;
+					++i;
+				}
+			} finally {
+				it.close();
+			}
+			size = i;
+			this.ids = Arrays.copyOf(ids, size);
+			this.descCodes = Arrays.copyOf(descCodes, size);
+			this.kinds = Arrays.copyOf(kinds, size);
+			this.vertexOffsets = Arrays.copyOf(vertexOffsets, size + 1);
+			this.wkbOffsets = Arrays.copyOf(wkbOffsets, size + 1);
+			this.envelopes = Arrays.copyOf(envelopes, size);
+			this.skipped = skipped;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			int gridSize = Math.max(1, Math.min(MAX_GRID_SIZE,
+					(int) Math.sqrt(size / (double) BUGS_PER_CELL)));
+			// bucket the bugs into every cell their bounding box overlaps
+			int[][] cells = new int[gridSize * gridSize][];
+			int[] cellSizes = new int[gridSize * gridSize];
+			int itemCount = 0;
+			for (int i = 0; i < size; ++i) {
+				int minX = cell(envelopes[i].getMinX(), bounds.getMinX(), bounds.getWidth(), gridSize);
+				int maxX = cell(envelopes[i].getMaxX(), bounds.getMinX(), bounds.getWidth(), gridSize);
+				int minY = cell(envelopes[i].getMinY(), bounds.getMinY(), bounds.getHeight(), gridSize);
+				int maxY = cell(envelopes[i].getMaxY(), bounds.getMinY(), bounds.getHeight(), gridSize);
+				for (int y = minY; y <= maxY; ++y) {
+					for (int x = minX; x <= maxX; ++x) {
+						int c = y * gridSize + x;
+						if (cells[c] == null)
+							cells[c] = new int[4];
+						else if (cellSizes[c] == cells[c].length) {
+							int[] grown = new int[cellSizes[c] * 2];
+							System.arraycopy(cells[c], 0, grown, 0, cellSizes[c]);
+							cells[c] = grown;
+						}
+						cells[c][cellSizes[c]++] = i;
+						++itemCount;
+					}
+				}
+			}
+
+			writeString(out, typeKey);
+			writeString(out, typeName);
+			writeString(out, schemaSpec);
+			out.writeInt(size);
+			out.writeInt(vertexOffsets[size]);
+			out.writeInt(wkb.size());
+			out.writeDouble(bounds.getMinX());
+			out.writeDouble(bounds.getMaxX());
+			out.writeDouble(bounds.getMinY());
+			out.writeDouble(bounds.getMaxY());
+			out.writeInt(gridSize);
+			out.writeInt(itemCount);
+			for (int i = 0; i < size; ++i) {
+				out.writeLong(ids[i]);
+			}
+			for (int i = 0; i < size; ++i) {
+				out.writeInt(descCodes[i]);
+			}
+			out.write(kinds);
+			for (int offset : vertexOffsets) {
+				out.writeInt(offset);
+			}
+			for (int v = 0; v < 2 * vertexOffsets[size]; ++v) {
+				out.writeDouble(coords[v]);
+			}
+			for (int offset : wkbOffsets) {
+				out.writeInt(offset);
+			}
+			wkb.writeTo(out);
+			int offset = 0;
+			out.writeInt(offset);
+			for (int c = 0; c < cells.length; ++c) {
+				offset += cellSizes[c];
+				out.writeInt(offset);
+			}
+			for (int c = 0; c < cells.length; ++c) {
+				for (int k = 0; k < cellSizes[c]; ++k) {
+					out.writeInt(cells[c][k]);
+				}
+			}
+		}
+	}
+
+	private static int cell(double value, double min, double span, int gridSize) {
+		if (span <= 0)
+			return 0;
+		int cell = (int) ((value - min) / span * gridSize);
+		return Math.max(0, Math.min(gridSize - 1, cell));
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(CHARSET);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		try {
+			return new String(bytes, CHARSET);
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Set;
+
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.styling.FeatureTypeStyle;
+import org.geotools.styling.Fill;
+import org.geotools.styling.Graphic;
+import org.geotools.styling.Mark;
+import org.geotools.styling.Rule;
+import org.geotools.styling.Stroke;
+import org.geotools.styling.Style;
+import org.geotools.styling.StyleFactory;
+import org.geotools.styling.Symbolizer;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.identity.FeatureId;
+
+/**
+ * The rendering style of one OSMI type. The symbolizers and the rule for the
+ * unselected bugs are built once per type name and never changed afterwards,
+ * a selection only adds a new id filter rule in front of them. The selection
+ * itself is kept by the caller. For {@link BugPainter} the point marks are
+ * also kept rasterized.
+ *
+ * @author snikhil
+ *
+ */
+public final class BugStyle {
+
+	public enum GeomType {
+		POINT, LINE, POLYGON
+	};
+
+	private static final StyleFactory sf = CommonFactoryFinder.getStyleFactory(null);
+	private static final FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2(null);
+
+	private static final Color SELECTED_COLOUR = Color.YELLOW;
+	private static final float SELECTED_POINT_SIZE = 15.0f;
+	private static final float OPACITY = 1.0f;
+	private static final float LINE_WIDTH = 1.0f;
+	private static final float POINT_SIZE = 10.0f;
+
+	// fill colours of the known OSMI types, the same type gets the same
+	// colour in every view
+	private static final HashMap<String, Color> TYPE_FILLS = new HashMap<String, Color>();
+	static {
+		TYPE_FILLS.put("duplicate_ways", new Color(0, 0, 255));
+		TYPE_FILLS.put("unconnected_minor5", new Color(204, 204, 0));
+		TYPE_FILLS.put("unconnected_minor2", new Color(255, 230, 128));
+		TYPE_FILLS.put("unconnected_minor1", new Color(255, 204, 0));
+		TYPE_FILLS.put("unconnected_major5", new Color(255, 102, 102));
+		TYPE_FILLS.put("unconnected_major2", new Color(255, 148, 77));
+		TYPE_FILLS.put("unconnected_major1", new Color(255, 0, 0));
+	}
+	// colours for the types of other views, picked by the type name
+	private static final Color[] OTHER_FILLS = { new Color(255, 0, 0),
+			new Color(0, 160, 0), new Color(160, 0, 160),
+			new Color(0, 160, 160), new Color(128, 64, 0),
+			new Color(255, 0, 128), new Color(64, 64, 255),
+			new Color(128, 128, 0) };
+
+	private static final HashMap<String, BugStyle> styles = new HashMap<String, BugStyle>();
+
+	private final GeomType geomType;
+	private final Color fill;
+	private final Symbolizer selectedSymbolizer;
+	private final Rule rule;
+	// used as long as nothing of the type is selected
+	private final Style unselectedStyle;
+	// the point marks rasterized for BugPainter, null for other geometries
+	private final BufferedImage sprite;
+	private final BufferedImage selectedSprite;
+
+	/**
+	 * @return the shared style of an OSMI type
+	 */
+	public static synchronized BugStyle get(String typeName) {
+		BugStyle style = styles.get(typeName);
+		if (style == null) {
+			style = new BugStyle(typeName);
+			styles.put(typeName, style);
+		}
+		return style;
+	}
+
+	/**
+	 * @return the fill colour of an OSMI type
+	 */
+	public static Color getFillColour(String typeName) {
+		Color fill = TYPE_FILLS.get(typeName);
+		if (fill == null)
+			fill = OTHER_FILLS[(typeName.hashCode() & 0x7fffffff) % OTHER_FILLS.length];
+		return fill;
+	}
+
+	public static GeomType getGeomType(String typeName) {
+		return "duplicate_ways".equals(typeName) ? GeomType.LINE : GeomType.POINT;
+	}
+
+	private BugStyle(String typeName) {
+		geomType = getGeomType(typeName);
+		fill = getFillColour(typeName);
+		selectedSymbolizer = createSymbolizer(SELECTED_COLOUR, SELECTED_COLOUR, true);
+
+		rule = sf.createRule();
+		rule.symbolizers().add(createSymbolizer(fill, fill, false));
+		rule.setElseFilter(true);
+
+		FeatureTypeStyle fts = sf.createFeatureTypeStyle();
+		fts.rules().add(rule);
+		unselectedStyle = sf.createStyle();
+		unselectedStyle.featureTypeStyles().add(fts);
+
+		if (geomType == GeomType.POINT) {
+			sprite = createSprite(fill, POINT_SIZE);
+			selectedSprite = createSprite(SELECTED_COLOUR, SELECTED_POINT_SIZE);
+		} else {
+			sprite = null;
+			selectedSprite = null;
+		}
+	}
+
+	public GeomType getGeomType() {
+		return geomType;
+	}
+
+	public Color getFill() {
+		return fill;
+	}
+
+	public static Color getSelectedColour() {
+		return SELECTED_COLOUR;
+	}
+
+	public static float getLineWidth() {
+		return LINE_WIDTH;
+	}
+
+	/**
+	 * @return <code>true</code> if {@link BugPainter} can draw the type,
+	 *         polygons are left to the StreamingRenderer
+	 */
+	public boolean isSimple() {
+		return geomType != GeomType.POLYGON;
+	}
+
+	/**
+	 * @return the triangle mark of the point types as image, centred on the
+	 *         point; null for other types
+	 */
+	public BufferedImage getSprite(boolean selected) {
+		return selected ? selectedSprite : sprite;
+	}
+
+	/**
+	 * @return the style highlighting the selected bugs, only the selection
+	 *         rule is created anew
+	 */
+	public Style getStyle(Set<FeatureId> selected) {
+		if (selected.isEmpty())
+			return unselectedStyle;
+
+		Rule selectedRule = sf.createRule();
+		selectedRule.symbolizers().add(selectedSymbolizer);
+		selectedRule.setFilter(ff.id(selected));
+
+		FeatureTypeStyle fts = sf.createFeatureTypeStyle();
+		fts.rules().add(selectedRule);
+		fts.rules().add(rule);
+
+		Style style = sf.createStyle();
+		style.featureTypeStyles().add(fts);
+		return style;
+	}
+
+	/**
+	 * Rasterizes the triangle mark the point symbolizer draws
+	 */
+	private static BufferedImage createSprite(Color colour, float size) {
+		int extent = (int) Math.ceil(size + 2 * LINE_WIDTH) | 1;
+		BufferedImage image = new BufferedImage(extent, extent, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			double c = extent / 2.0;
+			double r = size / 2.0;
+			Path2D.Double triangle = new Path2D.Double();
+			triangle.moveTo(c, c - r);
+			triangle.lineTo(c + r * Math.sqrt(3) / 2, c + r / 2);
+			triangle.lineTo(c - r * Math.sqrt(3) / 2, c + r / 2);
+			triangle.closePath();
+			g.setColor(new Color(colour.getRed(), colour.getGreen(), colour.getBlue(),
+					Math.round(255 * OPACITY)));
+			g.fill(triangle);
+			g.setColor(colour);
+			g.setStroke(new BasicStroke(LINE_WIDTH));
+			g.draw(triangle);
+		} finally {
+			g.dispose();
+		}
+		return image;
+	}
+
+	private Symbolizer createSymbolizer(Color outlineColor, Color fillColor, boolean bSelected) {
+		Symbolizer symbolizer = null;
+		Fill fill = null;
+		Stroke stroke = sf.createStroke(ff.literal(outlineColor), ff.literal(LINE_WIDTH));
+
+		switch (geomType) {
+		case POLYGON:
+			fill = sf.createFill(ff.literal(fillColor), ff.literal(OPACITY));
+			symbolizer = sf.createPolygonSymbolizer(stroke, fill, null);
+			break;
+
+		case LINE:
+			symbolizer = sf.createLineSymbolizer(stroke, null);
+			break;
+
+		case POINT:
+			fill = sf.createFill(ff.literal(fillColor), ff.literal(OPACITY));
+
+			Mark mark = sf.getTriangleMark();
+			mark.setFill(fill);
+			mark.setStroke(stroke);
+
+			Graphic graphic = sf.createDefaultGraphic();
+			graphic.graphicalSymbols().clear();
+			graphic.graphicalSymbols().add(mark);
+			graphic.setSize(ff.literal(bSelected ? SELECTED_POINT_SIZE : POINT_SIZE));
+
+			symbolizer = sf.createPointSymbolizer(graphic, null);
+		}
+		return symbolizer;
+	}
+}
@@ -0,0 +1,276 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.geojson.feature.FeatureJSON;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.openstreetmap.josm.Main;
+
+/**
+ * Disk cache for downloaded Osm Inspector bugs. One GeoJSON file is kept per
+ * OSMI view, type name and quantized bbox, headed by the schema of its bugs so
+ * that hits can be read back without asking the WFS server. Entries expire
+ * after a configurable time to live and the least recently used ones are
+ * evicted once the cache grows over its size cap.
+ *
+ * @author snikhil
+ *
+ */
+public class BugTileCache {
+
+	private static final String TILE_SUFFIX = ".json";
+	private static final String ENCODING = "UTF-8";
+
+	private static BugTileCache instance;
+
+	private final File cacheDir;
+	private final long timeToLive;
+	private final long maxSize;
+	private long size;
+
+	// cache files in least recently used order
+	private final LinkedHashMap<File, Long> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * The cache shared by all WFS clients, configured from the preferences
+	 * <code>osmInspector.cache.ttlMinutes</code> and
+	 * <code>osmInspector.cache.maxSizeMB</code>
+	 */
+	public static synchronized BugTileCache getInstance() {
+		if (instance == null) {
+			File dir = new File(Main.pref.getPreferencesDir(), "osminspector/cache");
+			long ttl = Main.pref.getInteger("osmInspector.cache.ttlMinutes", 12 * 60) * 60L * 1000L;
+			long cap = Main.pref.getInteger("osmInspector.cache.maxSizeMB", 100) * 1024L * 1024L;
+			instance = new BugTileCache(dir, ttl, cap);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param cacheDir
+	 *            directory the cache files are stored in
+	 * @param timeToLive
+	 *            milliseconds after which an entry is downloaded again
+	 * @param maxSize
+	 *            size cap of all cached tiles in bytes
+	 */
+	public BugTileCache(File cacheDir, long timeToLive, long maxSize) {
+		this.cacheDir = cacheDir;
+		this.timeToLive = timeToLive;
+		this.maxSize = maxSize;
+		entries = new LinkedHashMap<File, Long>(16, 0.75f, true);
+		scan();
+	}
+
+	/**
+	 * Rebuilds the LRU order of the tiles left over from earlier sessions,
+	 * using the last modification time as last access time
+	 */
+	private void scan() {
+		File[] views = cacheDir.listFiles();
+		if (views == null)
+			return;
+		ArrayList<File> tiles = new ArrayList<File>();
+		for (File view : views) {
+			File[] types = view.listFiles();
+			if (types == null)
+				continue;
+			for (File type : types) {
+				File[] files = type.listFiles();
+				if (files == null)
+					continue;
+				for (File f : files) {
+					if (f.getName().endsWith(TILE_SUFFIX))
+						tiles.add(f);
+				}
+			}
+		}
+		Collections.sort(tiles, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+			}
+		});
+		for (File f : tiles) {
+			entries.put(f, f.length());
+			size += f.length();
+		}
+		evict();
+	}
+
+	/**
+	 * Looks up the bugs of one tile
+	 *
+	 * @return the cached bugs or <code>null</code> when the tile is not cached
+	 *         or has expired
+	 */
+	public FeatureCollection<SimpleFeatureType, SimpleFeature> get(String view,
+			String typeName, String tileKey) {
+		File file = tileFile(view, typeName, tileKey);
+		synchronized (this) {
+			// get() also moves the entry to the most recently used end
+			if (entries.get(file) == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+		}
+
+		FeatureCollection<SimpleFeatureType, SimpleFeature> features = null;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), ENCODING));
+			try {
+				long fetched = Long.parseLong(reader.readLine());
+				// each tile carries its own schema, the attributes requested
+				// depend on the filter
+				SimpleFeatureType schema = DataUtilities.createType(typeName, reader.readLine());
+				if (System.currentTimeMillis() - fetched <= timeToLive) {
+					FeatureJSON json = new FeatureJSON();
+					json.setFeatureType(schema);
+					List<SimpleFeature> list = new ArrayList<SimpleFeature>();
+					FeatureIterator<SimpleFeature> it = json.streamFeatureCollection(reader);
+					try {
+						while (it.hasNext()) {
+							list.add(it.next());
+						}
+					} finally {
+						it.close();
+					}
+					features = new ListFeatureCollection(schema, list);
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (Exception e) {
+			// a broken cache file is just dropped and downloaded again
+			e.printStackTrace();
+		}
+
+		if (features == null) {
+			remove(file);
+			misses.incrementAndGet();
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		hits.incrementAndGet();
+		return features;
+	}
+
+	/**
+	 * Stores the bugs of one tile, the collection must already be in memory
+	 * 
+	 * @return the size of the cache file, 0 if it could not be written
+	 */
+	public long put(String view, String typeName, String tileKey,
+			FeatureCollection<SimpleFeatureType, SimpleFeature> features) {
+		File file = tileFile(view, typeName, tileKey);
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			file.getParentFile().mkdirs();
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(tmp), ENCODING));
+			try {
+				writer.write(String.valueOf(System.currentTimeMillis()));
+				writer.newLine();
+				writer.write(DataUtilities.encodeType(features.getSchema()));
+				writer.newLine();
+				new FeatureJSON().writeFeatureCollection(features, writer);
+			} finally {
+				writer.close();
+			}
+			synchronized (this) {
+				if (entries.containsKey(file))
+					removeEntry(file);
+				if (!tmp.renameTo(file))
+					throw new IOException("Cannot rename " + tmp + " to " + file);
+				long length = file.length();
+				entries.put(file, length);
+				size += length;
+				evict();
+				return length;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			tmp.delete();
+			return 0;
+		}
+	}
+
+	private synchronized void remove(File file) {
+		if (entries.containsKey(file))
+			removeEntry(file);
+		file.delete();
+	}
+
+	private void removeEntry(File file) {
+		size -= entries.remove(file);
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<File, Long>> it = entries.entrySet().iterator();
+		while (size > maxSize && it.hasNext()) {
+			Map.Entry<File, Long> eldest = it.next();
+			size -= eldest.getValue();
+			eldest.getKey().delete();
+			it.remove();
+		}
+	}
+
+	private File typeDir(String view, String typeName) {
+		return new File(new File(cacheDir, sanitize(view)), sanitize(typeName));
+	}
+
+	private File tileFile(String view, String typeName, String tileKey) {
+		return new File(typeDir(view, typeName), sanitize(tileKey) + TILE_SUFFIX);
+	}
+
+	private static String sanitize(String name) {
+		return name.replaceAll("[^A-Za-z0-9_.-]", "_");
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	@Override
+	public String toString() {
+		return "BugTileCache hits: " + getHits() + " misses: " + getMisses()
+				+ " tiles: " + getEntryCount() + " bytes: " + getSize();
+	}
+}
@@ -0,0 +1,380 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.renderer.lite.StreamingRenderer;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.identity.FeatureId;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.projection.Projection;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Renders the bugs of {@link OsmInspectorLayer} in square screen tiles, the
+ * missing tiles of a paint concurrently on a pool with one thread per core.
+ * The tiles are aligned to a grid in east/north at the scale of the view,
+ * so after a pan only the tiles coming into view are rendered and the
+ * others are taken from the cache. The tiles hold the bugs without their
+ * selection, which is drawn over them on every paint. When bugs are merged
+ * only the tiles their bounds reach are rendered again; the cache is
+ * dropped when types are replaced or removed, or the scale or the
+ * projection changes.
+ *
+ * Every tile gets its own StreamingRenderer, which is not thread safe, and
+ * its own {@link BugPainter}.
+ *
+ * @author snikhil
+ *
+ */
+public class BugTileRenderer {
+
+	/** width and height of a tile in pixels */
+	public static final int TILE_SIZE = 256;
+	// pixels around a tile whose bugs are rendered too, so marks crossing
+	// the tile border are not cut off
+	private static final int MARGIN = 16;
+
+	private static ExecutorService pool;
+
+	private final CoordinateReferenceSystem crs;
+	private final boolean directRendering;
+	private final int maxTiles;
+
+	// the rendered tiles by grid position, least recently used first
+	private final LinkedHashMap<Long, BufferedImage> tiles;
+	// the types and bugs the tiles show, in painting order
+	private final List<String> tilesTypes = new ArrayList<String>();
+	private final List<BugSet> tilesBugs = new ArrayList<BugSet>();
+	private Projection tilesProjection;
+	private double tilesScale;
+
+	/**
+	 * @param crs
+	 *            the CRS of the bugs, in lat/lon axis order
+	 * @param directRendering
+	 *            draw the simple styles with {@link BugPainter}
+	 */
+	public BugTileRenderer(CoordinateReferenceSystem crs, boolean directRendering, int maxTiles) {
+		this.crs = crs;
+		this.directRendering = directRendering;
+		this.maxTiles = maxTiles;
+		tiles = new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true);
+	}
+
+	/**
+	 * The threads rendering the tiles, shared by all layers
+	 */
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+					new ThreadFactory() {
+						private int count;
+
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "OsmInspector-render-" + (++count));
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return pool;
+	}
+
+	/**
+	 * Renders the tiles of the view missing in the cache and draws all of
+	 * them into g. Called by the paint of the layer.
+	 *
+	 * @param origin
+	 *            the east/north of the upper left corner of the view
+	 * @param scale
+	 *            east/north units per pixel
+	 * @param level
+	 *            the simplification level, see {@link BugSet#getLevel(double)}
+	 */
+	public void paint(Graphics2D g, final BugLayerState state, final Projection projection,
+			EastNorth origin, final double scale, int width, int height, final int level) {
+		if (projection != tilesProjection || scale != tilesScale) {
+			tiles.clear();
+			tilesProjection = projection;
+			tilesScale = scale;
+		} else {
+			dropChangedTiles(state, projection, scale);
+		}
+		tilesTypes.clear();
+		tilesBugs.clear();
+		for (BugLayerState.Entry entry : state.getEntries()) {
+			tilesTypes.add(entry.getTypeKey());
+			tilesBugs.add(entry.getBugs());
+		}
+
+		double span = TILE_SIZE * scale;
+		int minX = (int) Math.floor(origin.east() / span);
+		int maxX = (int) Math.floor((origin.east() + width * scale) / span);
+		int minY = (int) Math.floor((origin.north() - height * scale) / span);
+		int maxY = (int) Math.floor(origin.north() / span);
+
+		List<Long> missing = new ArrayList<Long>();
+		for (int y = minY; y <= maxY; ++y) {
+			for (int x = minX; x <= maxX; ++x) {
+				if (!tiles.containsKey(getKey(x, y)))
+					missing.add(getKey(x, y));
+			}
+		}
+
+		if (!missing.isEmpty()) {
+			long start = OsmInspectorMetrics.start();
+			if (directRendering) {
+				// project on this thread, not once per tile thread
+				for (BugLayerState.Entry entry : state.getEntries()) {
+					if (BugStyle.get(entry.getTypeName()).isSimple())
+						entry.getBugs().getProjected(projection, level);
+				}
+			}
+			List<Callable<BufferedImage>> tasks = new ArrayList<Callable<BufferedImage>>();
+			for (final Long key : missing) {
+				tasks.add(new Callable<BufferedImage>() {
+					public BufferedImage call() {
+						return renderTile(state, projection, getX(key), getY(key), scale, level);
+					}
+				});
+			}
+			try {
+				List<Future<BufferedImage>> results = getPool().invokeAll(tasks);
+				for (int i = 0; i < missing.size(); ++i) {
+					tiles.put(missing.get(i), results.get(i).get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+			OsmInspectorMetrics.getInstance().stop(OsmInspectorMetrics.PAINT_RENDER_TILES, start);
+			OsmInspectorMetrics.getInstance().increment(OsmInspectorMetrics.PAINT_TILES, missing.size());
+		} else {
+			OsmInspectorMetrics.getInstance().increment(OsmInspectorMetrics.PAINT_CACHED, 1);
+		}
+
+		// all tiles share the fraction of the origin, so they meet exactly
+		double left = origin.east() / scale;
+		double top = origin.north() / scale;
+		for (int y = minY; y <= maxY; ++y) {
+			for (int x = minX; x <= maxX; ++x) {
+				BufferedImage tile = tiles.get(getKey(x, y));
+				if (tile != null) {
+					g.drawImage(tile, (int) Math.floor((double) x * TILE_SIZE - left),
+							(int) Math.floor(top - (double) (y + 1) * TILE_SIZE), null);
+				}
+			}
+		}
+
+		// keeps at least the tiles of the view
+		int keep = Math.max(maxTiles, (maxX - minX + 1) * (maxY - minY + 1));
+		while (tiles.size() > keep) {
+			tiles.remove(tiles.keySet().iterator().next());
+		}
+
+		paintSelection(g, state, projection, origin, scale, width, height, level);
+	}
+
+	/**
+	 * Drops the tiles the bugs merged since the last paint reach into, or
+	 * all tiles if the types changed otherwise
+	 */
+	private void dropChangedTiles(BugLayerState state, Projection projection, double scale) {
+		List<BugLayerState.Entry> entries = state.getEntries();
+		List<Envelope> changed = new ArrayList<Envelope>();
+		boolean all = entries.size() < tilesTypes.size();
+		for (int idx = 0; idx < entries.size() && !all; ++idx) {
+			BugLayerState.Entry entry = entries.get(idx);
+			BugSet before = null;
+			if (idx < tilesTypes.size()) {
+				if (!tilesTypes.get(idx).equals(entry.getTypeKey())) {
+					all = true;
+					break;
+				}
+				before = tilesBugs.get(idx);
+			}
+			List<Envelope> appended = entry.getBugs().getAppendedSince(before);
+			if (appended == null)
+				all = true;
+			else
+				changed.addAll(appended);
+		}
+		if (all) {
+			tiles.clear();
+			return;
+		}
+		if (changed.isEmpty() || tiles.isEmpty())
+			return;
+
+		// the east/north bounds, widened by the marks reaching over them
+		List<Envelope> areas = new ArrayList<Envelope>(changed.size());
+		for (Envelope bounds : changed) {
+			if (bounds.isNull())
+				continue;
+			EastNorth min = projection.latlon2eastNorth(new LatLon(bounds.getMinY(), bounds.getMinX()));
+			EastNorth max = projection.latlon2eastNorth(new LatLon(bounds.getMaxY(), bounds.getMaxX()));
+			Envelope area = new Envelope(min.east(), max.east(), min.north(), max.north());
+			area.expandBy(MARGIN * scale);
+			areas.add(area);
+		}
+		double span = TILE_SIZE * scale;
+		Iterator<Long> it = tiles.keySet().iterator();
+		while (it.hasNext()) {
+			Long key = it.next();
+			Envelope tile = new Envelope(getX(key) * span, (getX(key) + 1) * span,
+					getY(key) * span, (getY(key) + 1) * span);
+			for (Envelope area : areas) {
+				if (area.intersects(tile)) {
+					it.remove();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Draws the selected bugs of the view over the tiles
+	 */
+	@SuppressWarnings("deprecation")
+	private void paintSelection(Graphics2D g, BugLayerState state, Projection projection,
+			EastNorth origin, double scale, int width, int height, int level) {
+		EastNorth lowerRight = new EastNorth(origin.east() + width * scale,
+				origin.north() - height * scale);
+		LatLon min = projection.eastNorth2latlon(new EastNorth(origin.east(), lowerRight.north()));
+		LatLon max = projection.eastNorth2latlon(new EastNorth(lowerRight.east(), origin.north()));
+		ReferencedEnvelope mapArea = new ReferencedEnvelope(min.lat(), max.lat(),
+				min.lon(), max.lon(), crs);
+		double degreesPerPixel = (max.lon() - min.lon()) / width;
+		Envelope queryArea = new Envelope(min.lon(), max.lon(), min.lat(), max.lat());
+		queryArea.expandBy(MARGIN * degreesPerPixel);
+		Rectangle screen = new Rectangle(0, 0, width, height);
+
+		BugPainter painter = null;
+		org.geotools.map.MapContext visible = null;
+		for (BugLayerState.Entry entry : state.getEntries()) {
+			Set<FeatureId> selected = entry.getSelected();
+			if (selected.isEmpty())
+				continue;
+			BugSet bugs = entry.getBugs();
+			if (directRendering && BugStyle.get(bugs.getTypeName()).isSimple()) {
+				visible = renderStreaming(g, visible, screen, mapArea);
+				if (painter == null)
+					painter = new BugPainter(g, projection, origin, scale, width, height);
+				painter.paintSelected(bugs, selected, level);
+				continue;
+			}
+			List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+			for (SimpleFeature feature : bugs.query(queryArea, degreesPerPixel)) {
+				if (selected.contains(feature.getIdentifier()))
+					features.add(feature);
+			}
+			if (features.isEmpty())
+				continue;
+			if (visible == null)
+				visible = new org.geotools.map.DefaultMapContext(crs);
+			visible.addLayer(new ListFeatureCollection(bugs.getSchema(), features), entry.getStyle());
+		}
+		renderStreaming(g, visible, screen, mapArea);
+	}
+
+	private static Long getKey(int x, int y) {
+		return Long.valueOf(((long) x << 32) | (y & 0xffffffffL));
+	}
+
+	private static int getX(Long key) {
+		return (int) (key.longValue() >> 32);
+	}
+
+	private static int getY(Long key) {
+		return (int) key.longValue();
+	}
+
+	/**
+	 * Renders the bugs of the tile x, y of the grid without selection,
+	 * called on the pool
+	 */
+	@SuppressWarnings("deprecation")
+	private BufferedImage renderTile(BugLayerState state, Projection projection,
+			int x, int y, double scale, int level) {
+		double span = TILE_SIZE * scale;
+		EastNorth upperLeft = new EastNorth(x * span, (y + 1) * span);
+		EastNorth lowerRight = new EastNorth((x + 1) * span, y * span);
+		LatLon min = projection.eastNorth2latlon(new EastNorth(upperLeft.east(), lowerRight.north()));
+		LatLon max = projection.eastNorth2latlon(new EastNorth(lowerRight.east(), upperLeft.north()));
+
+		// lat/lon axis order, as the CRS is decoded
+		ReferencedEnvelope mapArea = new ReferencedEnvelope(min.lat(), max.lat(),
+				min.lon(), max.lon(), crs);
+		double degreesPerPixel = (max.lon() - min.lon()) / TILE_SIZE;
+		Envelope queryArea = new Envelope(min.lon(), max.lon(), min.lat(), max.lat());
+		queryArea.expandBy(MARGIN * degreesPerPixel);
+
+		Rectangle screen = new Rectangle(0, 0, TILE_SIZE, TILE_SIZE);
+		BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		try {
+			BugPainter painter = directRendering ? new BugPainter(g, projection,
+					upperLeft, scale, TILE_SIZE, TILE_SIZE) : null;
+			// the types the painter cannot draw in between keep their order;
+			// the deprecated context is named in full, as an import of it
+			// is not covered by @SuppressWarnings
+			org.geotools.map.MapContext visible = null;
+			for (BugLayerState.Entry entry : state.getEntries()) {
+				BugSet bugs = entry.getBugs();
+				// the selection is drawn over the tiles
+				if (painter != null && painter.canPaint(bugs.getTypeName())) {
+					visible = renderStreaming(g, visible, screen, mapArea);
+					painter.paint(bugs, Collections.<FeatureId> emptySet(), level);
+					continue;
+				}
+				if (visible == null)
+					visible = new org.geotools.map.DefaultMapContext(crs);
+				visible.addLayer(new ListFeatureCollection(bugs.getSchema(),
+						bugs.query(queryArea, degreesPerPixel)),
+						BugStyle.get(bugs.getTypeName()).getStyle(Collections.<FeatureId> emptySet()));
+			}
+			renderStreaming(g, visible, screen, mapArea);
+		} finally {
+			g.dispose();
+		}
+		return image;
+	}
+
+	/**
+	 * Renders the layers collected for the StreamingRenderer, if any
+	 *
+	 * @return null, the context is disposed
+	 */
+	@SuppressWarnings("deprecation")
+	private static org.geotools.map.MapContext renderStreaming(Graphics2D g,
+			org.geotools.map.MapContext visible, Rectangle screen, ReferencedEnvelope mapArea) {
+		if (visible != null) {
+			StreamingRenderer renderer = new StreamingRenderer();
+			renderer.setContext(visible);
+			renderer.setInteractive(false);
+			renderer.paint(g, screen, mapArea);
+			visible.dispose();
+		}
+		return null;
+	}
+}
@@ -1,111 +1,317 @@
 package org.openstreetmap.josm.plugins.osminspector;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.geotools.data.DataStore;
-import org.geotools.data.DataStoreFinder;
 import org.geotools.data.FeatureSource;
-import org.geotools.factory.CommonFactoryFinder;
-import org.geotools.factory.GeoTools;
+import org.geotools.data.Query;
+import org.geotools.data.SchemaNotFoundException;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.opengis.feature.Feature;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.feature.type.AttributeDescriptor;
-import org.opengis.filter.Filter;
-import org.opengis.filter.FilterFactory2;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.NoSuchAuthorityCodeException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.openstreetmap.josm.Main;
 import org.openstreetmap.josm.data.Bounds;
-import org.openstreetmap.josm.data.coor.LatLon;
 
 public class GeoFabrikWFSClient {
 
+	public static final String DEFAULT_CAPABILITIES_URL = "http://tools.geofabrik.de/osmi/view/routing_non_eu/wxs?SERVICE=WFS&VERSION=1.0.0&REQUEST=GetCapabilities";
+
+	private static final Pattern VIEW_PATTERN = Pattern.compile("/view/([^/]+)/");
+	// GeoJSON size of a bug until complete tiles have been measured
+	private static final long DEFAULT_BYTES_PER_FEATURE = 500;
+
+	// measured over the complete tiles downloaded, to estimate the size of
+	// the incomplete ones
+	private static final AtomicLong measuredBytes = new AtomicLong();
+	private static final AtomicLong measuredFeatures = new AtomicLong();
+
 	private Bounds bbox;
-	private DataStore data;
-	private boolean bInitialized = false;
+	private final TileGrid tileGrid;
+	private final String capabilitiesUrl;
+	// the connection shared with all other clients of the same server
+	private final WFSClientRegistry.Endpoint endpoint;
+	// what is requested besides the bbox
+	private final BugFilter filter;
+	// upper bound of the bugs of one GetFeature response
+	private final int maxFeatures;
+
+	/**
+	 * The bugs of one tile, or only the first of them if the tile holds more
+	 * bugs than a single request returns
+	 */
+	public static class TileFeatures {
+		private final FeatureCollection<SimpleFeatureType, SimpleFeature> features;
+		private final boolean complete;
+		private final long bytes;
+
+		public TileFeatures(FeatureCollection<SimpleFeatureType, SimpleFeature> features, boolean complete) {
+			this(features, complete, 0);
+		}
+
+		public TileFeatures(FeatureCollection<SimpleFeatureType, SimpleFeature> features,
+				boolean complete, long bytes) {
+			this.features = features;
+			this.complete = complete;
+			this.bytes = bytes;
+		}
+
+		public FeatureCollection<SimpleFeatureType, SimpleFeature> getFeatures() {
+			return features;
+		}
+
+		/**
+		 * @return <code>false</code> if the response was cut off at
+		 *         maxFeatures, the tile has to be fetched as its four
+		 *         children then unless it is of {@link TileGrid#MAX_ZOOM}
+		 */
+		public boolean isComplete() {
+			return complete;
+		}
+
+		/**
+		 * @return the GeoJSON size of a downloaded tile, estimated from its
+		 *         bug count if it was incomplete, 0 if it came from the disk
+		 *         cache or could not be measured
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+	}
 	
+	/**
+	 * A request failed because what is known about the server's types is
+	 * out of date, e.g. a type was removed or its schema changed
+	 */
+	public static class StaleMetadataException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public StaleMetadataException(String typeName, Throwable cause) {
+			super("Outdated metadata of " + typeName);
+			if (cause != null)
+				initCause(cause);
+		}
+	}
+
 	public GeoFabrikWFSClient(Bounds bounds) {
+		this(DEFAULT_CAPABILITIES_URL, bounds, new TileGrid());
+	}
+
+	/**
+	 * @param capabilitiesUrl
+	 *            GetCapabilities URL of the WFS endpoint, a local stand-in
+	 *            server can be used here
+	 * @param bounds
+	 *            the area to fetch the bugs for
+	 * @param grid
+	 *            the tiles already loaded into the layer, only missing tiles
+	 *            of bounds are fetched
+	 */
+	public GeoFabrikWFSClient(String capabilitiesUrl, Bounds bounds, TileGrid grid) {
+		this(capabilitiesUrl, bounds, grid, BugFilter.fromPreferences());
+	}
+
+	/**
+	 * @param filter
+	 *            restricts the requested types, bugs and attributes
+	 */
+	public GeoFabrikWFSClient(String capabilitiesUrl, Bounds bounds, TileGrid grid, BugFilter filter) {
+		this.capabilitiesUrl = capabilitiesUrl;
+		endpoint = WFSClientRegistry.getInstance().getEndpoint(capabilitiesUrl);
 		bbox = bounds;
+		tileGrid = grid;
+		this.filter = filter;
+		maxFeatures = Main.pref.getInteger("osmInspector.wfs.maxFeatures", 5000);
+	}
+
+	/**
+	 * @return <code>false</code> if the bugs of the type are filtered out
+	 *         as a whole
+	 */
+	public boolean acceptsType( String typeName )
+	{
+		return filter.acceptsType(typeName);
+	}
+
+	/**
+	 * @return the tiles of this client's area that still have to be fetched
+	 *         for typeName and no other import is fetching already; they stay
+	 *         claimed until they are marked loaded or released
+	 */
+	public List<TileGrid.Tile> claimMissingTiles( String typeName )
+	{
+		return tileGrid.claimMissingTiles(getTypeKey(typeName), bbox);
 	}
 
-	public FeatureCollection<SimpleFeatureType, SimpleFeature> getFeatures( String typeName )
+	/**
+	 * Gives back a claimed tile that was not loaded
+	 */
+	public void releaseTile( String typeName, TileGrid.Tile tile )
+	{
+		tileGrid.release(getTypeKey(typeName), tile);
+	}
+
+	/**
+	 * @return the key of a type of this client's view, unique over all views
+	 *         loaded into the layer
+	 */
+	public String getTypeKey( String typeName )
+	{
+		return getViewName() + "/" + typeName;
+	}
+
+	/**
+	 * Fetches the bugs of one tile from the disk cache or the WFS server. At
+	 * most <code>osmInspector.wfs.maxFeatures</code> bugs are requested at
+	 * once, so a response stays small enough to arrive within the timeout;
+	 * tiles holding more bugs come back incomplete and are not cached.
+	 * Tiles of {@link TileGrid#MAX_ZOOM} cannot be split, when they come
+	 * back incomplete the truncation is counted in
+	 * {@link OsmInspectorMetrics#WFS_TRUNCATED}.
+	 */
+	public TileFeatures fetchTile( String typeName, TileGrid.Tile tile )
 			throws IOException, NoSuchAuthorityCodeException, FactoryException {
 		
-		initializeDataStore();
+		OsmInspectorMetrics metrics = OsmInspectorMetrics.getInstance();
+		BugTileCache cache = BugTileCache.getInstance();
+		long start = OsmInspectorMetrics.start();
+		// tiles fetched with another filter are cached apart
+		String tileKey = tile.getKey() + "-" + filter.getKey();
+		FeatureCollection<SimpleFeatureType, SimpleFeature> cached = cache.get(getViewName(), typeName, tileKey);
+		if (cached != null) {
+			metrics.stop(OsmInspectorMetrics.CACHE_READ, start);
+			metrics.increment(OsmInspectorMetrics.CACHE_FEATURES, cached.size());
+			return new TileFeatures(cached, true);
+		}
 		
-		// Step 3 - discovery; enhance to iterate over all types with bounds
-		SimpleFeatureType schema = data.getSchema(typeName);
-		// Step 4 - target
-		FeatureSource<SimpleFeatureType, SimpleFeature> source = data.getFeatureSource(typeName);
-		System.out.println("Source Metadata Bounds:" + source.getBounds());
-		System.out.println("Source schema: " + source.getSchema());
-		
-		// Step 5 - query
-		List<AttributeDescriptor> listAttrs = schema.getAttributeDescriptors(); 
-		String geomName = listAttrs.get(0).getLocalName();
-		CoordinateReferenceSystem targetCRS = CRS.decode("EPSG:4236");
-
-		Bounds bounds = Main.map.mapView.getLatLonBounds(Main.map.mapView.getBounds());
-
-		LatLon minLL = bounds.getMin();
-		LatLon maxLL = bounds.getMax();
-		double minLat = Math.min(minLL.getY(), maxLL.getY());
-		double maxLat = Math.max(minLL.getY(), maxLL.getY());
-		double minLon = Math.min(minLL.getX(), maxLL.getX());
-		double maxLon = Math.max(minLL.getX(), maxLL.getX());
-		
-		
-		ReferencedEnvelope bboxRef = new ReferencedEnvelope(minLon, maxLon, minLat, maxLat, targetCRS);
-		System.out.println("Reference Bounds:" + bboxRef);
+		DataStore data = endpoint.acquireDataStore();
+		List<SimpleFeature> list = new ArrayList<SimpleFeature>();
+		FeatureCollection<SimpleFeatureType, SimpleFeature> features;
+		try {
+			SimpleFeatureType schema;
+			FeatureSource<SimpleFeatureType, SimpleFeature> source;
+			Query query;
+			try {
+				// Step 3 - discovery; enhance to iterate over all types with bounds
+				schema = endpoint.getSchema(typeName);
+				if (!filter.acceptsSchema(schema)) {
+					// the CQL filter cannot be applied to the type, none
+					// of its bugs are wanted
+					return new TileFeatures(new ListFeatureCollection(schema), true);
+				}
+				// Step 4 - target
+				source = data.getFeatureSource(typeName);
+
+				// Step 5 - query
+				CoordinateReferenceSystem targetCRS = CRS.decode("EPSG:4236");
+
+				ReferencedEnvelope bboxRef = new ReferencedEnvelope(tile.getMinLon(),
+						tile.getMaxLon(), tile.getMinLat(), tile.getMaxLat(), targetCRS);
+
+				//
+				// Ask WFS service for typeName data constrained by bboxRef and the
+				// attribute filters, transferring only the attributes the layer uses
+				//
+				query = new Query(typeName, filter.createFilter(schema, bboxRef),
+						filter.getPropertyNames(schema));
+			} catch (SchemaNotFoundException e) {
+				throw new StaleMetadataException(typeName, e);
+			} catch (IllegalArgumentException e) {
+				// the known schema lacks a property the filter refers to
+				throw new StaleMetadataException(typeName, e);
+			}
+			query.setMaxFeatures(maxFeatures);
+			start = OsmInspectorMetrics.start();
+			features = source.getFeatures(query);
+
+			// iterating performs the actual request; the parsed features are
+			// only referenced from a plain list, which the layer adopts as is
+			FeatureIterator<SimpleFeature> it = features.features();
+			try {
+				while (it.hasNext()) {
+					list.add(it.next());
+				}
+			} finally {
+				it.close();
+			}
+			if (features.getSchema().getGeometryDescriptor() == null
+					&& schema.getGeometryDescriptor() != null)
+				throw new StaleMetadataException(typeName, null);
+		} finally {
+			endpoint.releaseDataStore(data);
+		}
+		metrics.stop(OsmInspectorMetrics.WFS_REQUEST, start);
+		metrics.increment(OsmInspectorMetrics.WFS_FEATURES, list.size());
+		ListFeatureCollection loaded = new ListFeatureCollection(features.getSchema(), list);
+		if (list.size() >= maxFeatures) {
+			// cannot be split any further, the bugs beyond maxFeatures
+			// stay unknown
+			if (tile.getZoom() >= TileGrid.MAX_ZOOM)
+				metrics.increment(OsmInspectorMetrics.WFS_TRUNCATED, 1);
+			return new TileFeatures(loaded, false, estimateBytes(list.size()));
+		}
+		// the GeoJSON size stands in for the bytes received, the WFS data
+		// store does not report them
+		long bytes = cache.put(getViewName(), typeName, tileKey, loaded);
+		metrics.increment(OsmInspectorMetrics.WFS_BYTES, bytes);
+		if (bytes > 0) {
+			measuredBytes.addAndGet(bytes);
+			measuredFeatures.addAndGet(list.size());
+		}
 		
-		//
-		// Ask WFS service for typeName data constrained by bboxRef
-		//
-		FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2(GeoTools.getDefaultHints());
-		Filter filterBB = ff.bbox(ff.property(geomName), bboxRef);
-		FeatureCollection<SimpleFeatureType, SimpleFeature> features = source.getFeatures(filterBB);
+		return new TileFeatures(loaded, true, bytes);
+	}
 
-		return features;
+	/**
+	 * @return the likely GeoJSON size of a response that was not written to
+	 *         the cache, from the mean size of the bugs measured so far
+	 */
+	private static long estimateBytes(int featureCount) {
+		long features = measuredFeatures.get();
+		long perFeature = features == 0 ? DEFAULT_BYTES_PER_FEATURE : measuredBytes.get() / features;
+		return featureCount * perFeature;
 	}
 
+	/**
+	 * @return the name of the OSMI view this client talks to, e.g.
+	 *         routing_non_eu
+	 */
+	public String getViewName() {
+		Matcher m = VIEW_PATTERN.matcher(capabilitiesUrl);
+		return m.find() ? m.group(1) : capabilitiesUrl;
+	}
+
+	/**
+	 * Connects to the server unless another import already did
+	 */
 	public void initializeDataStore() throws IOException {
-		if( bInitialized == true )
-			return;
-					
-		String getCapabilities = "http://tools.geofabrik.de/osmi/view/routing_non_eu/wxs?SERVICE=WFS&VERSION=1.0.0&REQUEST=GetCapabilities";
-		@SuppressWarnings("rawtypes")
-		Map<String, Comparable> connectionParameters = new HashMap<String, Comparable>();
-		connectionParameters.put("WFSDataStoreFactory:GET_CAPABILITIES_URL", getCapabilities);
-		connectionParameters.put("WFSDataStoreFactory:WFS_STRATEGY", "mapserver");
-		connectionParameters.put("WFSDataStoreFactory:LENIENT", true);
-		connectionParameters.put("WFSDataStoreFactory:TIMEOUT", 20000);
-		connectionParameters.put("WFSDataStoreFactory:BUFFER_SIZE", 10000);
-		// Step 2 - connection
-		data = DataStoreFinder.getDataStore(connectionParameters);
-		
-		bInitialized	= true;
+		endpoint.getDataStore();
 	}
 
+	/**
+	 * @return the feature types of the view, read from disk on a cold start
+	 *         when they are known from an earlier session
+	 */
 	public String [] getTypeNames() throws IOException
 	{
-		return data.getTypeNames();
+		return endpoint.getTypeNames();
 	}
 	
-	public DataStore getData() {
-		return data;
-	}
-
-	public void setData(DataStore data) {
-		this.data = data;
+	public WFSClientRegistry.Endpoint getEndpoint() {
+		return endpoint;
 	}
 
 	/**
@@ -6,6 +6,11 @@ import static org.openstreetmap.josm.tools.I18n.tr;
 import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
@@ -46,19 +51,12 @@ public class ImportOsmInspectorBugsAction extends JosmAction {
 				
 				if( inspector == null )
 				{
-					GeoFabrikWFSClient wfs = new GeoFabrikWFSClient(bounds);
-					wfs.initializeDataStore();
-					inspector = new OsmInspectorLayer( wfs );
+					inspector = new OsmInspectorLayer();
 					Main.main.addLayer( inspector );
 					plugin.setLayer( inspector );
 				}
-				else
-				{
-					GeoFabrikWFSClient wfs = new GeoFabrikWFSClient(bounds);
-					wfs.initializeDataStore();
-					inspector.loadFeatures( wfs );  
-					
-				}
+				
+				Main.worker.submit( new ImportOsmInspectorBugsTask( inspector, createClients( bounds, inspector ) ) );
 			} catch (Exception e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -69,4 +67,30 @@ public class ImportOsmInspectorBugsAction extends JosmAction {
 			
 		}
 	}
+
+	/**
+	 * @return one client per configured OSMI view, all of them load into the
+	 *         same layer
+	 */
+	public static List<GeoFabrikWFSClient> createClients(Bounds bounds, OsmInspectorLayer layer) {
+		List<GeoFabrikWFSClient> clients = new ArrayList<GeoFabrikWFSClient>();
+		for (String url : getCapabilitiesUrls()) {
+			clients.add(new GeoFabrikWFSClient(url, bounds, layer.getTileGrid()));
+		}
+		return clients;
+	}
+
+	/**
+	 * @return the GetCapabilities URLs of the OSMI views to import, from the
+	 *         preference <code>osmInspector.capabilitiesUrls</code>; falls
+	 *         back to the single view of
+	 *         <code>osmInspector.capabilitiesUrl</code>
+	 */
+	public static Collection<String> getCapabilitiesUrls() {
+		String url = Main.pref.get("osmInspector.capabilitiesUrl", GeoFabrikWFSClient.DEFAULT_CAPABILITIES_URL);
+		Collection<String> urls = Main.pref.getCollection("osmInspector.capabilitiesUrls",
+				Collections.singletonList(url));
+		// the same view twice would only download everything twice
+		return new LinkedHashSet<String>(urls);
+	}
 }
@@ -0,0 +1,368 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.gui.PleaseWaitRunnable;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.xml.sax.SAXException;
+
+/**
+ * Background task fetching the missing tiles of every Osm Inspector WFS type
+ * concurrently and handing each tile over to the layer as soon as it has
+ * arrived. Several OSMI views can be imported at once, their type lists are
+ * discovered in parallel and their tiles share one pool of requests. Neither
+ * the GetFeature round-trips nor the merges run on the event dispatch thread.
+ *
+ * A tile with more bugs than one response may hold is fetched again as its
+ * four quarters, recursively, so responses stay small; failed requests are
+ * retried with exponential backoff, only the tile whose request finally
+ * fails is left out.
+ *
+ * @author snikhil
+ *
+ */
+public class ImportOsmInspectorBugsTask extends PleaseWaitRunnable {
+
+	/** upper bound of GetFeature requests running at the same time per view */
+	private static final int MAX_PARALLEL_REQUESTS = 4;
+	private static final long POLL_INTERVAL_MS = 250;
+	/** wait before the first retry of a failed request, doubled for each further one */
+	private static final long RETRY_DELAY_MS = 1000;
+
+	// imports between the start and the end of realRun, the prefetcher
+	// stays out of their way
+	private static final AtomicInteger running = new AtomicInteger();
+
+	private final OsmInspectorLayer layer;
+	private final List<GeoFabrikWFSClient> wfsClients;
+	private ExecutorService executor;
+	private volatile boolean canceled;
+	// requests submitted and not taken from the completion service yet,
+	// guarded by itself
+	private final Map<Future<TypeFeatures>, TypeFeatures> inFlight = new HashMap<Future<TypeFeatures>, TypeFeatures>();
+
+	/**
+	 * One GetFeature request for a tile of a type, and its result once it
+	 * has been read into memory
+	 */
+	private static class TypeFeatures {
+		private final GeoFabrikWFSClient client;
+		private final String typeName;
+		private final TileGrid.Tile tile;
+		// the request whose tile was split into this one and its siblings,
+		// null for a claimed tile
+		private final TypeFeatures parent;
+		private final GeoFabrikWFSClient.TileFeatures result;
+		// children of a split request not loaded yet, only used by realRun
+		private int remaining;
+
+		public TypeFeatures(GeoFabrikWFSClient client, String typeName, TileGrid.Tile tile,
+				TypeFeatures parent, GeoFabrikWFSClient.TileFeatures result) {
+			this.client = client;
+			this.typeName = typeName;
+			this.tile = tile;
+			this.parent = parent;
+			this.result = result;
+		}
+
+		/**
+		 * @return the request of the claimed tile this one is part of
+		 */
+		public TypeFeatures getRoot() {
+			TypeFeatures root = this;
+			while (root.parent != null)
+				root = root.parent;
+			return root;
+		}
+	}
+
+	public ImportOsmInspectorBugsTask(OsmInspectorLayer theLayer,
+			GeoFabrikWFSClient theClient) {
+		this(theLayer, Collections.singletonList(theClient));
+	}
+
+	/**
+	 * @param theClients
+	 *            one client per OSMI view to import
+	 */
+	public ImportOsmInspectorBugsTask(OsmInspectorLayer theLayer,
+			List<GeoFabrikWFSClient> theClients) {
+		super(tr("Importing Osm Inspector bugs"), false);
+		layer = theLayer;
+		wfsClients = theClients;
+	}
+
+	/**
+	 * @param monitor
+	 *            reports the progress, {@link NullProgressMonitor#INSTANCE}
+	 *            runs the import without a dialog
+	 * @param ignoreException
+	 *            <code>true</code> for imports the user did not start, their
+	 *            failures are only logged and counted in
+	 *            {@link OsmInspectorMetrics#WFS_FAILURES}
+	 */
+	public ImportOsmInspectorBugsTask(OsmInspectorLayer theLayer,
+			List<GeoFabrikWFSClient> theClients, ProgressMonitor monitor,
+			boolean ignoreException) {
+		super(tr("Importing Osm Inspector bugs"), monitor, ignoreException);
+		layer = theLayer;
+		wfsClients = theClients;
+	}
+
+	/**
+	 * @return <code>true</code> while an import is fetching tiles
+	 */
+	public static boolean isRunning() {
+		return running.get() > 0;
+	}
+
+	/**
+	 * Cancels the requests for tiles outside the area, the view has moved
+	 * away from them. A task that has not started yet is canceled as a whole.
+	 */
+	public void retainArea(Bounds bounds) {
+		synchronized (inFlight) {
+			if (executor == null) {
+				canceled = true;
+				return;
+			}
+			for (Map.Entry<Future<TypeFeatures>, TypeFeatures> entry : inFlight.entrySet()) {
+				if (!entry.getValue().tile.intersects(bounds))
+					entry.getKey().cancel(true);
+			}
+		}
+	}
+
+	@Override
+	protected void realRun() throws SAXException, IOException {
+		if (wfsClients.isEmpty() || canceled)
+			return;
+		running.incrementAndGet();
+		try {
+			fetchAll();
+		} finally {
+			running.decrementAndGet();
+		}
+	}
+
+	private void fetchAll() throws IOException {
+		progressMonitor.indeterminateSubTask(tr("Connecting to Osm Inspector..."));
+
+		synchronized (inFlight) {
+			executor = Executors.newFixedThreadPool(MAX_PARALLEL_REQUESTS * wfsClients.size());
+		}
+		CompletionService<TypeFeatures> completion = new ExecutorCompletionService<TypeFeatures>(executor);
+		int retries = Main.pref.getInteger("osmInspector.wfs.retries", 3);
+		IOException lastError = null;
+		try {
+			// the type names usually come from the registry, the servers are
+			// only contacted for tiles missing in the disk cache
+			List<Future<String[]>> discoveries = new ArrayList<Future<String[]>>();
+			for (GeoFabrikWFSClient client : wfsClients) {
+				discoveries.add(executor.submit(createDiscovery(client)));
+			}
+
+			// the tiles of a view are requested as soon as its types are
+			// known, while the other views are still being discovered
+			int count = 0;
+			for (int i = 0; i < wfsClients.size() && !canceled; ++i) {
+				GeoFabrikWFSClient client = wfsClients.get(i);
+				String typeNames[];
+				try {
+					typeNames = discoveries.get(i).get();
+				} catch (ExecutionException e) {
+					lastError = failed(client, e);
+					continue;
+				}
+				// the first type is not a bug layer, see OsmInspectorLayer;
+				// only the tiles not loaded into the layer yet are requested
+				for (int idx = 1; idx < typeNames.length; ++idx) {
+					if (!client.acceptsType(typeNames[idx]))
+						continue;
+					for (TileGrid.Tile tile : client.claimMissingTiles(typeNames[idx])) {
+						submit(completion, new TypeFeatures(client, typeNames[idx], tile, null, null), retries);
+						++count;
+					}
+				}
+			}
+			if (count == 0 || canceled)
+				return;
+
+			progressMonitor.setTicksCount(count);
+			progressMonitor.subTask(tr("Downloading {0} bug tiles...", count));
+
+			int done = 0;
+			while (done < count && !canceled) {
+				Future<TypeFeatures> future = completion.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+				if (future == null)
+					continue;
+				++done;
+				TypeFeatures request;
+				synchronized (inFlight) {
+					request = inFlight.remove(future);
+				}
+				try {
+					TypeFeatures result = future.get();
+					// the bugs are shown right away, even those of a tile
+					// that has to be split
+					merge(result);
+					if (result.result.isComplete()) {
+						loaded(request);
+					} else if (request.tile.getZoom() >= TileGrid.MAX_ZOOM) {
+						// cannot be split; kept for this session so it is not
+						// downloaded again on every pan, but never cached
+						loaded(request);
+					} else {
+						// too many bugs for one response, the quarters are
+						// fetched instead
+						request.remaining = 4;
+						for (TileGrid.Tile child : request.tile.getChildren()) {
+							submit(completion, new TypeFeatures(request.client,
+									request.typeName, child, request, null), retries);
+						}
+						count += 4;
+						progressMonitor.setTicksCount(count);
+						OsmInspectorMetrics.getInstance().increment(OsmInspectorMetrics.WFS_SPLITS, 1);
+					}
+				} catch (CancellationException e) {
+					// the view moved away, another import may claim it later
+					release(request);
+				} catch (ExecutionException e) {
+					release(request);
+					lastError = failed(request.client, e);
+				}
+				progressMonitor.worked(1);
+			}
+		} catch (InterruptedException e) {
+			canceled = true;
+		} finally {
+			executor.shutdownNow();
+			synchronized (inFlight) {
+				for (TypeFeatures request : inFlight.values()) {
+					release(request);
+				}
+				inFlight.clear();
+			}
+		}
+
+		if (lastError != null && !canceled)
+			throw lastError;
+	}
+
+	private IOException failed(GeoFabrikWFSClient client, ExecutionException e) {
+		e.getCause().printStackTrace();
+		OsmInspectorMetrics.getInstance().increment(OsmInspectorMetrics.WFS_FAILURES, 1);
+		// the server has changed its types, ask it again next time; other
+		// errors such as timeouts leave the shared connection alone
+		if (e.getCause() instanceof GeoFabrikWFSClient.StaleMetadataException)
+			client.getEndpoint().invalidate();
+		return new IOException(tr("Failed to download Osm Inspector bugs"), e.getCause());
+	}
+
+	private Callable<String[]> createDiscovery(final GeoFabrikWFSClient client) {
+		return new Callable<String[]>() {
+			@Override
+			public String[] call() throws Exception {
+				return client.getTypeNames();
+			}
+		};
+	}
+
+	private void submit(CompletionService<TypeFeatures> completion, TypeFeatures request, int retries) {
+		synchronized (inFlight) {
+			inFlight.put(completion.submit(createFetch(request, retries)), request);
+		}
+	}
+
+	private Callable<TypeFeatures> createFetch(final TypeFeatures request, final int retries) {
+		return new Callable<TypeFeatures>() {
+			@Override
+			public TypeFeatures call() throws Exception {
+				// served from the disk cache or downloaded and read into
+				// memory on this worker thread; requests failing for transient
+				// errors are repeated with growing delays, a canceled one is
+				// interrupted. Outdated metadata is asked for again once, at
+				// once, as repeating the same request could not help.
+				boolean refreshed = false;
+				for (int attempt = 0;; ++attempt) {
+					try {
+						return new TypeFeatures(request.client, request.typeName, request.tile,
+								request.parent, request.client.fetchTile(request.typeName, request.tile));
+					} catch (GeoFabrikWFSClient.StaleMetadataException e) {
+						if (refreshed || canceled)
+							throw e;
+						refreshed = true;
+						request.client.getEndpoint().invalidate();
+					} catch (IOException e) {
+						if (attempt >= retries || canceled)
+							throw e;
+						OsmInspectorMetrics.getInstance().increment(OsmInspectorMetrics.WFS_RETRIES, 1);
+						Thread.sleep(RETRY_DELAY_MS << attempt);
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Merges a downloaded tile into the layer on this thread, the layer shows
+	 * it on the event dispatch thread once merged
+	 */
+	private void merge(TypeFeatures result) {
+		String typeKey = result.client.getTypeKey(result.typeName);
+		layer.loadFeatures(typeKey, result.typeName, result.result.getFeatures());
+	}
+
+	/**
+	 * Marks the tile of a complete request loaded, and a split tile once all
+	 * its quarters are
+	 */
+	private void loaded(TypeFeatures request) {
+		String typeKey = request.client.getTypeKey(request.typeName);
+		TileGrid grid = layer.getTileGrid();
+		grid.markLoaded(typeKey, request.tile);
+		for (TypeFeatures parent = request.parent; parent != null && --parent.remaining == 0; parent = parent.parent) {
+			grid.markLoaded(typeKey, parent.tile);
+		}
+	}
+
+	/**
+	 * Gives back the claimed tile of a request that was not loaded, its
+	 * split siblings may still arrive
+	 */
+	private void release(TypeFeatures request) {
+		TypeFeatures root = request.getRoot();
+		root.client.releaseTile(root.typeName, root.tile);
+	}
+
+	@Override
+	protected void cancel() {
+		canceled = true;
+		if (executor != null)
+			executor.shutdownNow();
+	}
+
+	@Override
+	protected void finish() {
+	}
+}
@@ -1,58 +1,135 @@
 package org.openstreetmap.josm.plugins.osminspector;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 
-import org.geotools.data.memory.MemoryFeatureCollection;
 import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 
-public class OSMIFeatureTracker 
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Collects the bugs of one OSMI type. Adding is done by one thread at a time,
+ * the added bugs become visible to readers as a new immutable {@link BugSet}
+ * on {@link #commit()}.
+ */
+public class OSMIFeatureTracker
 {
 
-	private HashMap< Long, SimpleFeature > hashFeatures;
-	private MemoryFeatureCollection features;
+	// problem ids of the tracked bugs, only used by the writer
+	private HashSet< Long > ids;
+	// bugs added since the last commit
+	private ArrayList< SimpleFeature > pending;
+	// the last published set, replaced as a whole on commit
+	private volatile BugSet bugs;
+
+	public OSMIFeatureTracker( String theTypeName, SimpleFeatureType schema )
+	{
+		ids			 	= new HashSet< Long >();
+		pending			= new ArrayList< SimpleFeature >();
+		bugs			= new BugSet( theTypeName, schema );
+	}
+
+	/**
+	 * Adds a bug unless one with the same problem_id is tracked already. It
+	 * shows up in {@link #getBugs()} after the next {@link #commit()}.
+	 *
+	 * @return <code>true</code> if the bug was added
+	 */
+	public synchronized boolean add( SimpleFeature element )
+	{
+		Long ID = ( Long.parseLong( (String) element.getAttribute( "problem_id" ) ) );
+
+		if( ! ids.add( ID ) )
+			return false;
 
-	public OSMIFeatureTracker( FeatureCollection<SimpleFeatureType, SimpleFeature> featuresIn ) 
+		pending.add( element );
+		return true;
+	}
+
+	/**
+	 * Publishes the bugs added since the last commit
+	 *
+	 * @return the new set of bugs
+	 */
+	public synchronized BugSet commit()
 	{
-		hashFeatures 	= new HashMap();
-		features		= new MemoryFeatureCollection( featuresIn.getSchema() );
-		
-		for( Iterator it = features.iterator(); it.hasNext(); )
+		if( ! pending.isEmpty() )
 		{
-			SimpleFeature element = (SimpleFeature) it.next();
-			Long ID = ( Long.parseLong( (String) element.getAttribute( "problem_id" ) ) );
-			hashFeatures.put( ID, element );
+			bugs = bugs.append( pending );
+			pending = new ArrayList< SimpleFeature >();
 		}
-		
-		features.addAll( featuresIn );
+		return bugs;
 	}
 
-	public boolean mergeFeatures( FeatureCollection<SimpleFeatureType, SimpleFeature> newFeatures )
+	/**
+	 * Adds the bugs not tracked yet and commits them, duplicates are
+	 * recognized by their problem_id
+	 *
+	 * @return the bugs that were actually added
+	 */
+	public synchronized List< SimpleFeature > mergeFeatures( FeatureCollection<SimpleFeatureType, SimpleFeature> newFeatures )
 	{
-		for( Iterator it = newFeatures.iterator(); it.hasNext(); )
+		List< SimpleFeature > added = new ArrayList< SimpleFeature >();
+		FeatureIterator< SimpleFeature > it = newFeatures.features();
+		try
 		{
-			SimpleFeature element = (SimpleFeature) it.next();
-			Long ID = ( Long.parseLong( (String) element.getAttribute( "problem_id" ) ) );
-			
-			if( ! hashFeatures.containsKey(ID ) )
+			while( it.hasNext() )
 			{
-				hashFeatures.put( ID, element );
-				features.add( element );
+				SimpleFeature element = it.next();
+				if( add( element ) )
+					added.add( element );
 			}
 		}
-		
-		return true;
+		finally
+		{
+			it.close();
+		}
+
+		commit();
+		return added;
 	}
-	
-	public HashMap< Long, SimpleFeature > getFeatureHash()
+
+	/**
+	 * @return the committed bugs, never changed afterwards
+	 */
+	public BugSet getBugs()
+	{
+		return bugs;
+	}
+
+	/**
+	 * @return the committed bugs whose geometry intersects the area
+	 */
+	public List< SimpleFeature > query( Geometry area )
+	{
+		return bugs.query( area );
+	}
+
+	/**
+	 * @return the committed bugs whose bounding box intersects the envelope
+	 */
+	public List< SimpleFeature > query( Envelope envelope )
+	{
+		return bugs.query( envelope );
+	}
+
+	public String getTypeName()
+	{
+		return bugs.getTypeName();
+	}
+
+	public int size()
 	{
-		return hashFeatures;
+		return bugs.size();
 	}
 
 	public FeatureCollection<SimpleFeatureType, SimpleFeature> getFeatures()
 	{
-		return features;
+		return bugs.getFeatures();
 	}
 }
@@ -1,42 +1,28 @@
 package org.openstreetmap.josm.plugins.osminspector;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
+import java.awt.FontMetrics;
 import java.awt.Graphics2D;
-import java.io.IOException;
-import java.util.ArrayList;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import javax.swing.Action;
 import javax.swing.Icon;
+import javax.swing.SwingUtilities;
 
-import org.apache.commons.lang.time.StopWatch;
-import org.geotools.data.DataUtilities;
 import org.geotools.data.simple.SimpleFeatureSource;
-import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureIterator;
-import org.geotools.filter.Filter;
-import org.geotools.geometry.jts.ReferencedEnvelope;
-import org.geotools.map.DefaultMapContext;
-import org.geotools.map.MapContext;
 import org.geotools.referencing.CRS;
-import org.geotools.renderer.lite.StreamingRenderer;
-import org.geotools.styling.FeatureTypeStyle;
-import org.geotools.styling.Fill;
-import org.geotools.styling.Graphic;
-import org.geotools.styling.Mark;
-import org.geotools.styling.Rule;
-import org.geotools.styling.Stroke;
-import org.geotools.styling.Style;
-import org.geotools.styling.StyleFactory;
-import org.geotools.styling.Symbolizer;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.filter.FilterFactory2;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.NoSuchAuthorityCodeException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -45,46 +31,44 @@ import org.openstreetmap.josm.data.Bounds;
 import org.openstreetmap.josm.data.coor.EastNorth;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
+import org.openstreetmap.josm.data.projection.Projection;
 import org.openstreetmap.josm.gui.MapView;
 import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.plugins.osminspector.gui.BugSnapshotActions;
+import org.openstreetmap.josm.plugins.osminspector.gui.MetricsDialog;
 import org.openstreetmap.josm.plugins.osminspector.gui.OsmInspectorDialog;
 import org.openstreetmap.josm.tools.ImageProvider;
 
-import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.geom.Point;
 import org.opengis.filter.identity.FeatureId;
 
 @SuppressWarnings("deprecation")
 public class OsmInspectorLayer extends Layer {
 
-	private StyleFactory sf = CommonFactoryFinder.getStyleFactory(null);
-	private FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2(null);
-	private StreamingRenderer renderer;
-	private CoordinateReferenceSystem crs;
 	private CoordinateReferenceSystem crsOSMI;
-	private GeomType geometryType;
-	private String geometryAttributeName;
 
 	private SimpleFeatureSource featureSource;
-	private MapContext context;
-	private boolean bIsChanged;
-
-	private int layerOffset = 1;
-	
-	private ArrayList<GeomType> selectGeomType;
-	private Color[] featureFills = { new Color( 255, 0, 0), 
-									new Color( 0, 0, 255), // duplicate ways
-									new Color( 204, 204, 0), // minor 5
-									new Color( 255, 230, 128), // minor 2
-									new Color( 255, 204, 0), //minor 1
-									new Color( 255, 102, 102), //major 5 
-									new Color( 255, 148, 77), // major 2
-									new Color( 255, 0, 0), // major 1
-									new Color( 255, 255, 64 ), //selected
-									new Color( 255, 0, 0), 
-									new Color( 255, 0, 0)  };
+
+	// what the layer shows, replaced as a whole by every merge and selection;
+	// paint and selectFeatures read it without locking
+	private volatile BugLayerState state;
+	// held while a merge or selection builds the next state
+	private final Object writeLock = new Object();
+
+	// the last rendering, the state and the lon/lat area it shows; only
+	// used by paint
+	private BufferedImage renderCache;
+	private BugLayerState renderCacheState;
+	private Envelope renderCacheArea;
+
+	// views showing more degrees per pixel than this draw clusters instead
+	// of the single bugs
+	private final double clusterDegreesPerPixel;
+	// renders the single bugs in screen tiles on all cores
+	private final BugTileRenderer tileRenderer;
+
 	/**
 	 * dialog showing the bug info
 	 */
@@ -95,9 +79,15 @@ public class OsmInspectorLayer extends Layer {
 	 */
 
 
-	// Container for bugs from Osmi
-	private ArrayList<OSMIFeatureTracker> arrFeatures;
-	private LinkedList<BugInfo> osmiBugInfo;
+	// Container for bugs from Osmi, keyed by view/type key; only changed
+	// under writeLock, readers use the published BugSets
+	private final LinkedHashMap<String, OSMIFeatureTracker> trackers;
+	// all bugs in loading order, frozen copies are published for the bug list
+	private final BugIndex osmiIndex;
+	// tiles of each type already merged into the trackers
+	private final TileGrid tileGrid = new TileGrid();
+	// loads the area the user is expected to look at next
+	private final BugPrefetcher prefetcher = new BugPrefetcher(this);
 
 	public SimpleFeatureSource getFeatureSource() {
 		return featureSource;
@@ -107,57 +97,56 @@ public class OsmInspectorLayer extends Layer {
 		this.featureSource = featureSource;
 	}
 
-	public boolean isbIsChanged() {
-		return bIsChanged;
-	}
-
-	public void setbIsChanged(boolean bIsChanged) {
-		this.bIsChanged = bIsChanged;
-	}
-
-	public ArrayList<OSMIFeatureTracker> getArrFeatures() {
-		return arrFeatures;
-	}
-
-	public void setArrFeatures(ArrayList<OSMIFeatureTracker> arrFeatures) {
-		this.arrFeatures = arrFeatures;
+	/**
+	 * @return the current state, never changed afterwards
+	 */
+	public BugLayerState getState() {
+		return state;
 	}
 
-	public LinkedList<BugInfo> getOsmiBugInfo() {
-		return getOsmiIndex().getBugs();
+	public TileGrid getTileGrid() {
+		return tileGrid;
 	}
 
-	public void setOsmiBugInfo(LinkedList<BugInfo> osmiBugInfo) {
-		this.osmiBugInfo = osmiBugInfo;
+	public BugPrefetcher getPrefetcher() {
+		return prefetcher;
 	}
 
+	/**
+	 * @return the bugs of the current state, see {@link BugIndex#freeze()}
+	 */
 	public BugIndex getOsmiIndex() {
-		return osmiIndex;
-	}
-
-	public void setOsmiIndex(BugIndex osmiIndex) {
-		this.osmiIndex = osmiIndex;
+		return state.getIndex();
 	}
 
-	// Pointer to prev and next osmi bugs
-	private BugIndex osmiIndex;
 	/**
 	 * 
-	 * The Bug attribute class: hold geom, id and description for that bug
+	 * The Bug attribute class: a lightweight view of one entry of the
+	 * {@link BugIndex}, holding its problem id, description and position
 	 * @author snikhil
 	 *
 	 */
-	public class BugInfo {
-		public Geometry getGeom() {
-			return geom;
+	public static class BugInfo {
+		public long getId() {
+			return id;
 		}
 
 		public String getDesc() {
 			return desc;
 		}
 
-		public String getId() {
-			return id;
+		/**
+		 * @return the centroid of the bug geometry
+		 */
+		public LatLon getCentroid() {
+			return new LatLon(centroidY, centroidX);
+		}
+
+		/**
+		 * @return the bounding box of the bug geometry, in lon/lat order
+		 */
+		public Envelope getEnvelope() {
+			return new Envelope(minX, maxX, minY, maxY);
 		}
 
 		public String getExtendedDesc()
@@ -165,148 +154,273 @@ public class OsmInspectorLayer extends Layer {
 			return String.valueOf(id).concat(" : ").concat(desc);
 		}
 		
-		private final Geometry geom;
+		private final long id;
 		private final String desc;
-		private final String id;
-
-		public BugInfo(SimpleFeature next) throws IndexOutOfBoundsException,
-				ParseException {
-			this.geom = (Geometry) next.getAttribute(0);
-			this.desc = (String) next.getAttribute("error_desc");
-			this.id = next.getID();
+		private final double centroidX;
+		private final double centroidY;
+		private final double minX;
+		private final double minY;
+		private final double maxX;
+		private final double maxY;
+
+		private BugInfo(long id, String desc, double centroidX,
+				double centroidY, double minX, double minY, double maxX,
+				double maxY) {
+			this.id = id;
+			this.desc = desc;
+			this.centroidX = centroidX;
+			this.centroidY = centroidY;
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
 		}
 
 		@Override
 		public String toString() {
-			// TODO Auto-generated method stub
-			return String.valueOf(id).concat(" : ").concat(geom.toString())
+			return String.valueOf(id).concat(" : ").concat(getCentroid().toString())
 					.concat(" : ").concat(desc);
 		}
 	}
 	/**
-	 * Helper class that stores the bug next and prev pointers and can navigate
-	 * the entire bug list
+	 * Helper class that stores all bugs of the layer in loading order for the
+	 * bug list.
+	 * 
+	 * The bugs are kept column wise in primitive arrays, ids are the parsed
+	 * problem_id and descriptions are dictionary encoded, so an entry costs
+	 * about 60 bytes and random access is O(1).
+	 * 
+	 * Bugs are only ever appended, so {@link #freeze()} can hand out
+	 * read-only copies that share the arrays and just remember the size.
 	 * 
 	 * @author snikhil
 	 * 
 	 */
-	public class BugIndex {
-		private int nextIndex;
-		private int previousIndex;
-		private LinkedList<BugInfo> osmBugs;
+	public static class BugIndex {
+		private static final int INITIAL_CAPACITY = 256;
+
+		private final boolean frozen;
+		private int size;
+		private long[] ids;
+		// centroid and bounding box of each bug, x is the longitude
+		private double[] centroids;
+		private double[] bounds;
+		private int[] descCodes;
+		private String[] descriptions;
+		private int descriptionCount;
+		// only kept by the index that is added to
+		private final HashMap<String, Integer> descriptionCodes;
+		// open addressing hash of the ids, slots hold index + 1, 0 is empty
+		private int[] idSlots;
 
 		public BugIndex() {
-			osmBugs = new LinkedList<BugInfo>();
-			nextIndex = 0;
-			previousIndex = -1;
+			frozen = false;
+			ids = new long[INITIAL_CAPACITY];
+			centroids = new double[2 * INITIAL_CAPACITY];
+			bounds = new double[4 * INITIAL_CAPACITY];
+			descCodes = new int[INITIAL_CAPACITY];
+			idSlots = new int[2 * INITIAL_CAPACITY];
+			descriptions = new String[16];
+			descriptionCodes = new HashMap<String, Integer>();
 		}
 
-		public void add( BugInfo theInfo )
-		{
-			osmBugs.add( theInfo );
+		private BugIndex(BugIndex index) {
+			frozen = true;
+			size = index.size;
+			ids = index.ids;
+			centroids = index.centroids;
+			bounds = index.bounds;
+			descCodes = index.descCodes;
+			idSlots = index.idSlots;
+			descriptions = index.descriptions;
+			descriptionCount = index.descriptionCount;
+			descriptionCodes = null;
 		}
-		
-		public void next() {
-			previousIndex = nextIndex;
-			nextIndex = ++nextIndex % osmBugs.size();
+
+		/**
+		 * @return a read-only copy of the bugs indexed so far, bugs added to
+		 *         this index later do not show up in it
+		 */
+		public BugIndex freeze() {
+			return frozen ? this : new BugIndex(this);
 		}
 
-		public void prev() {
-			nextIndex = previousIndex;
-			previousIndex = --previousIndex < 0 ? osmBugs.size() - 1
-					: previousIndex;
+		/**
+		 * Appends a bug, only its problem id, description, centroid and
+		 * bounding box are kept. Ids are unique over all views and types on
+		 * purpose, the list shows each problem once; the layer state does
+		 * not depend on it.
+		 * 
+		 * @return <code>false</code> if a bug with the same problem id is
+		 *         already indexed or the bug has no position, see
+		 *         {@link BugSet#hasPosition(SimpleFeature)}
+		 */
+		public boolean add( SimpleFeature feature )
+		{
+			if( !BugSet.hasPosition( feature ) )
+				return false;
+			long id = Long.parseLong( (String) feature.getAttribute( "problem_id" ) );
+			if( contains( id ) )
+				return false;
+			Geometry geom = (Geometry) feature.getDefaultGeometry();
+			Point centroid = geom.getCentroid();
+			Envelope env = geom.getEnvelopeInternal();
+			return add( id,
+					(String) feature.getAttribute( "error_desc" ),
+					centroid.getX(), centroid.getY(), env.getMinX(),
+					env.getMinY(), env.getMaxX(), env.getMaxY() );
+		}
+
+		public boolean add( long id, String desc, double centroidX,
+				double centroidY, double minX, double minY, double maxX,
+				double maxY )
+		{
+			if( frozen )
+				throw new UnsupportedOperationException( "frozen BugIndex" );
+			if( contains( id ) )
+				return false;
+			if( size == ids.length )
+				grow();
+			ids[size] = id;
+			centroids[2 * size] = centroidX;
+			centroids[2 * size + 1] = centroidY;
+			bounds[4 * size] = minX;
+			bounds[4 * size + 1] = minY;
+			bounds[4 * size + 2] = maxX;
+			bounds[4 * size + 3] = maxY;
+			descCodes[size] = encode( desc );
+			idSlots[findSlot( id )] = size + 1;
+			++size;
+			return true;
 		}
 
-		public BugInfo getItemPointedByNext() {
-			return osmBugs.get(nextIndex);
+		/**
+		 * @return the position of the bug with the problem id or -1
+		 */
+		public int indexOf( long id )
+		{
+			// a frozen copy may see the slots of bugs added after it
+			int index = idSlots[findSlot( id )] - 1;
+			return index < size ? index : -1;
 		}
 
-		public BugInfo getItemPointedByPrev() {
-			return osmBugs.get(previousIndex);
+		public boolean contains( long id )
+		{
+			return indexOf( id ) >= 0;
 		}
 
-		public BugInfo getNext() {
-			next();
-			return osmBugs.get(nextIndex);
+		private int findSlot( long id )
+		{
+			int mask = idSlots.length - 1;
+			int slot = (int) ( id ^ ( id >>> 32 ) ) * 0x9E3779B9 & mask;
+			while( idSlots[slot] != 0 && ids[idSlots[slot] - 1] != id )
+				slot = ( slot + 1 ) & mask;
+			return slot;
 		}
 
-		public BugInfo getPrev() {
-			prev();
-			return osmBugs.get(nextIndex);
+		private int encode( String desc )
+		{
+			if( desc == null )
+				desc = "";
+			Integer code = descriptionCodes.get( desc );
+			if( code == null )
+			{
+				code = descriptionCount;
+				// grown by copying, frozen copies keep the old array
+				if( descriptionCount == descriptions.length )
+					descriptions = Arrays.copyOf( descriptions, 2 * descriptionCount );
+				descriptions[descriptionCount++] = desc;
+				descriptionCodes.put( desc, code );
+			}
+			return code;
 		}
 
-		public LinkedList<BugInfo> getBugs()
+		private void grow()
 		{
-			return osmBugs;
+			int capacity = ids.length * 2;
+			ids = Arrays.copyOf( ids, capacity );
+			centroids = Arrays.copyOf( centroids, 2 * capacity );
+			bounds = Arrays.copyOf( bounds, 4 * capacity );
+			descCodes = Arrays.copyOf( descCodes, capacity );
+			idSlots = new int[2 * capacity];
+			for( int i = 0; i < size; ++i )
+				idSlots[findSlot( ids[i] )] = i + 1;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public BugInfo get(int index) {
+			if (index < 0 || index >= size)
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			return new BugInfo(ids[index], descriptions[descCodes[index]],
+					centroids[2 * index], centroids[2 * index + 1],
+					bounds[4 * index], bounds[4 * index + 1],
+					bounds[4 * index + 2], bounds[4 * index + 3]);
+		}
+
+		public long getId(int index) {
+			return ids[index];
+		}
+
+		public String getDesc(int index) {
+			return descriptions[descCodes[index]];
 		}
-	}
 
-	private enum GeomType {
-		POINT, LINE, POLYGON
-	};
+		public int getDescCode(int index) {
+			return descCodes[index];
+		}
+
+		/**
+		 * @return the distinct description with the dictionary code
+		 */
+		public String getDescription(int code) {
+			return descriptions[code];
+		}
+
+		public int getDescriptionCount() {
+			return descriptionCount;
+		}
 
-	private static final Color SELECTED_COLOUR = Color.YELLOW;
-	private static final float SELECTED_POINT_SIZE = 15.0f;
-	private static final float OPACITY = 1.0f;
-	private static final float LINE_WIDTH = 1.0f;
-	private static final float POINT_SIZE = 10.0f;
+		public double getCentroidX(int index) {
+			return centroids[2 * index];
+		}
+
+		public double getCentroidY(int index) {
+			return centroids[2 * index + 1];
+		}
+	}
+
+	/** approximate width of a cluster cell on screen */
+	private static final int CLUSTER_CELL_PIXELS = 48;
+	private static final int CLUSTER_MIN_SIZE = 10;
+	private static final int CLUSTER_MAX_SIZE = 36;
+	private static final Color CLUSTER_OUTLINE = new Color(64, 64, 64);
 
 	/**
+	 * Creates an empty layer, the bugs are streamed in by
+	 * {@link ImportOsmInspectorBugsTask} through
+	 * {@link #loadFeatures(String, String, FeatureCollection)}
 	 * 
-	 * @param wfsClient
 	 * @throws NoSuchAuthorityCodeException
 	 * @throws FactoryException
-	 * @throws IOException
-	 * @throws IndexOutOfBoundsException
-	 * @throws ParseException
 	 */
-	public OsmInspectorLayer(GeoFabrikWFSClient wfsClient)
-			throws NoSuchAuthorityCodeException, FactoryException, IOException,
-			IndexOutOfBoundsException, ParseException {
+	public OsmInspectorLayer() throws NoSuchAuthorityCodeException,
+			FactoryException {
 		super("OsmInspector");
 		
-		arrFeatures = new ArrayList<OSMIFeatureTracker>();
-		osmiBugInfo = new LinkedList<OsmInspectorLayer.BugInfo>();
-		selectGeomType = new ArrayList<GeomType>();
+		trackers = new LinkedHashMap<String, OSMIFeatureTracker>();
+		osmiIndex = new BugIndex();
+		state = new BugLayerState();
+		clusterDegreesPerPixel = Main.pref.getDouble("osmInspector.cluster.degreesPerPixel", 0.001);
 		
-		// Step 3 - discovery; enhance to iterate over all types with bounds
-
-		String typeNames[] = wfsClient.getTypeNames();
-		renderer = new StreamingRenderer();
-		crs = CRS.decode(Main.getProjection().toCode());
 		crsOSMI = CRS.decode("EPSG:4326");
-		context = new DefaultMapContext(crsOSMI);
-
-		osmiIndex = new BugIndex();
-		selectGeomType.add( GeomType.POINT );
-
-		for (int idx = 1; idx < typeNames.length; ++idx) 
-		{
-			String typeName = typeNames[idx];
-			Set<FeatureId> selectedFeatures = new HashSet();
-			
-			FeatureCollection<SimpleFeatureType, SimpleFeature> features = wfsClient.getFeatures(typeName);
-			setGeometry(selectGeomType, typeName);
-
-			System.out.println("Osm Inspector Features size: "+ features.size());
-			Style style = createDefaultStyle( idx, selectedFeatures );
-
-			OSMIFeatureTracker tracker = new OSMIFeatureTracker(features);
-			arrFeatures.add(tracker);
-			FeatureIterator<SimpleFeature> it = tracker.getFeatures().features();
-			
-			while (it.hasNext()) 
-			{
-				BugInfo theInfo = new BugInfo( it.next()) ;
-				osmiIndex.add( theInfo );
-			}
-			
-			context.addLayer( tracker.getFeatures(), style );
-		}
-
-		context.setTitle("Osm Inspector Errors");
-		renderer.setContext(context);
-		bIsChanged = true;
+		// with direct rendering BugPainter draws the simple styles instead
+		// of the StreamingRenderer
+		tileRenderer = new BugTileRenderer(crsOSMI,
+				Main.pref.getBoolean("osmInspector.render.direct", false),
+				Main.pref.getInteger("osmInspector.render.cacheTiles", 64));
 		
 		// finally initialize the dialog
 		dialog = new OsmInspectorDialog(this);
@@ -314,113 +428,106 @@ public class OsmInspectorLayer extends Layer {
 	}
 
 	/**
+	 * Merges the downloaded bugs of one OSMI type into the layer, typically
+	 * those of a single tile. May be called from any thread: merges are done
+	 * one at a time and published as a new {@link BugLayerState}, painting
+	 * and selection keep using the previous state meanwhile.
 	 * 
-	 * @param wfsClient
-	 * @throws NoSuchAuthorityCodeException
-	 * @throws FactoryException
-	 * @throws IOException
-	 * @throws ParseException 
-	 * @throws NoSuchElementException 
-	 * @throws IndexOutOfBoundsException 
+	 * @param typeKey
+	 *            the view and type the bugs come from, see
+	 *            {@link GeoFabrikWFSClient#getTypeKey(String)}; types of
+	 *            different views are kept apart
+	 * @param typeName
+	 *            the WFS type name, selects the style
+	 * @param features
+	 *            the downloaded bugs, already read into memory
 	 */
-	public void loadFeatures(GeoFabrikWFSClient wfsClient)
-			throws NoSuchAuthorityCodeException, FactoryException, IOException, IndexOutOfBoundsException, NoSuchElementException, ParseException {
-		String typeNames[] = wfsClient.getTypeNames();
-		
-		context.clearLayerList();
-		selectGeomType.clear();
-		selectGeomType.add( GeomType.POINT );
-		
-		for (int idx = 1; idx < typeNames.length; ++idx) 
-		{
-			String typeName = typeNames[idx];
-			Set<FeatureId> selectedFeatures = new HashSet();
-			
-			FeatureCollection<SimpleFeatureType, SimpleFeature> features = wfsClient .getFeatures(typeName);
-			setGeometry(selectGeomType, typeName);
-
-			System.out.println("Osm Inspector Features size: " + features.size());
-
-			OSMIFeatureTracker tracker = arrFeatures.get(idx - layerOffset);
-			tracker.mergeFeatures(features);
+	public void loadFeatures(String typeKey, String typeName,
+			FeatureCollection<SimpleFeatureType, SimpleFeature> features) {
+
+		long start = OsmInspectorMetrics.start();
+		int added = 0;
+		int duplicates = 0;
+		int rejected = 0;
+		synchronized (writeLock) {
+			OSMIFeatureTracker tracker = trackers.get(typeKey);
+			boolean isNew = tracker == null;
+			if (isNew) {
+				tracker = new OSMIFeatureTracker(typeName, features.getSchema());
+				trackers.put(typeKey, tracker);
+			}
 
-			FeatureIterator<SimpleFeature> it = tracker.getFeatures().features();
-			
-			while (it.hasNext()) 
-			{
-				BugInfo theInfo = new BugInfo( it.next() );
-				osmiIndex.add( theInfo );
+			// a single pass puts the bugs new to the type into the tracker
+			// and those new to the layer into the index. The bug list shows
+			// a problem id once even if several views or types report it,
+			// so the index may refuse a bug the tracker takes; only the
+			// tracker decides what is published and painted. Bugs the index
+			// could not take are rejected before the tracker sees them, so
+			// one bad row never stays pending in the tracker.
+			FeatureIterator<SimpleFeature> it = features.features();
+			try {
+				while (it.hasNext()) {
+					SimpleFeature feature = it.next();
+					if (!isValid(feature)) {
+						++rejected;
+					} else if (tracker.add(feature)) {
+						++added;
+						osmiIndex.add(feature);
+					} else {
+						++duplicates;
+					}
+				}
+			} finally {
+				it.close();
 			}
 
-			Style style = createDefaultStyle( idx, selectedFeatures );
-			context.addLayer( tracker.getFeatures(), style );
+			if (isNew || added > 0)
+				state = state.withBugs(typeKey, tracker.commit(), osmiIndex.freeze());
 		}
 
-		bIsChanged = true;
-		dialog.refreshModel();
-	}
+		OsmInspectorMetrics metrics = OsmInspectorMetrics.getInstance();
+		metrics.stop(OsmInspectorMetrics.MERGE, start);
+		metrics.increment(OsmInspectorMetrics.MERGE_ADDED, added);
+		metrics.increment(OsmInspectorMetrics.MERGE_DUPLICATES, duplicates);
+		metrics.increment(OsmInspectorMetrics.MERGE_REJECTED, rejected);
 
-	private Style createDefaultStyle( int idx, Set<FeatureId> IDs ) {
-		Color fillColor = featureFills[ idx ];
-		
-        Rule selectedRule = createRule(SELECTED_COLOUR, SELECTED_COLOUR,true);
-        selectedRule.setFilter(ff.id(IDs));
-		
-		Rule rule = createRule(fillColor, fillColor,false);
-	    rule.setElseFilter(true);
-
-		FeatureTypeStyle fts = sf.createFeatureTypeStyle();
-		fts.rules().add(selectedRule);
-		fts.rules().add(rule);
-
-		Style style = sf.createStyle();
-		style.featureTypeStyles().add(fts);
-		return style;
+		if (added > 0)
+			stateChanged();
 	}
 
-	private Rule createRule(Color outlineColor, Color fillColor, boolean bSelected) {
-		Symbolizer symbolizer = null;
-		Fill fill = null;
-		Stroke stroke = sf.createStroke(ff.literal(outlineColor), ff.literal(LINE_WIDTH));
-
-		switch (geometryType) {
-		case POLYGON:
-			fill = sf.createFill(ff.literal(fillColor), ff.literal(OPACITY));
-			symbolizer = sf.createPolygonSymbolizer(stroke, fill, geometryAttributeName);
-			break;
-
-		case LINE:
-			symbolizer = sf.createLineSymbolizer(stroke, geometryAttributeName);
-			break;
-
-		case POINT:
-			fill = sf.createFill(ff.literal(fillColor), ff.literal(OPACITY));
-
-			Mark mark = sf.getTriangleMark();
-			mark.setFill(fill);
-			mark.setStroke(stroke);
-
-			Graphic graphic = sf.createDefaultGraphic();
-			graphic.graphicalSymbols().clear();
-			graphic.graphicalSymbols().add(mark);
-			graphic.setSize(ff.literal(bSelected ? SELECTED_POINT_SIZE : POINT_SIZE));
-
-			symbolizer = sf.createPointSymbolizer(graphic, geometryAttributeName);
+	/**
+	 * @return <code>true</code> if the bug has a position and a numeric
+	 *         problem id, as the layer needs to show it
+	 */
+	private static boolean isValid(SimpleFeature feature) {
+		if (!BugSet.hasPosition(feature))
+			return false;
+		try {
+			Long.parseLong((String) feature.getAttribute("problem_id"));
+			return true;
+		} catch (RuntimeException e) {
+			// missing, not a string or not a number
+			return false;
 		}
-
-		Rule rule = sf.createRule();
-		rule.symbolizers().add(symbolizer);
-		return rule;
 	}
 
-	private void setGeometry(ArrayList<GeomType> selectedTypes, String typename) {
-		System.out.println("Passed type is" + typename);
-		if (typename.compareTo("duplicate_ways") == 0) {
-			geometryType = GeomType.LINE;
-		} else
-			geometryType = GeomType.POINT;
-		
-		selectedTypes.add( geometryType );
+	/**
+	 * Shows the current state in the bug list and the map view, on the event
+	 * dispatch thread. Several merges in a row are shown at once.
+	 */
+	private void stateChanged() {
+		if (!SwingUtilities.isEventDispatchThread()) {
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					stateChanged();
+				}
+			});
+			return;
+		}
+		dialog.refreshModel(state.getIndex());
+		if (Main.map != null && Main.map.mapView != null)
+			Main.map.mapView.repaint();
 	}
 
 	@Override
@@ -435,7 +542,9 @@ public class OsmInspectorLayer extends Layer {
 
 	@Override
 	public Action[] getMenuEntries() {
-		return new Action[] {};
+		return new Action[] { new BugSnapshotActions.Export(this),
+				new BugSnapshotActions.Import(this),
+				new MetricsDialog.ShowAction() };
 	}
 
 	@Override
@@ -458,32 +567,102 @@ public class OsmInspectorLayer extends Layer {
 		LatLon min = box.getMin();
 		LatLon max = box.getMax();
 
-		Coordinate northWest = new Coordinate(max.getX(), min.getY());
-		Coordinate southEast = new Coordinate(min.getX(), max.getY());
+		// the bug geometries are in lon/lat order
+		Envelope viewArea = new Envelope(Math.min(min.lon(), max.lon()),
+				Math.max(min.lon(), max.lon()), Math.min(min.lat(), max.lat()),
+				Math.max(min.lat(), max.lat()));
+
+		int width = mv.getBounds().width;
+		int height = mv.getBounds().height;
+		if (width <= 0 || height <= 0)
+			return;
+
+		// a merge or selection publishing a new state meanwhile shows up in
+		// the next paint
+		BugLayerState current = state;
+		double degreesPerPixel = viewArea.getWidth() / width;
+		if (degreesPerPixel <= clusterDegreesPerPixel) {
+			tileRenderer.paint(g, current, Main.getProjection(), mv.getEastNorth(0, 0),
+					mv.getScale(), width, height, BugSet.getLevel(degreesPerPixel));
+			// the clusters image is outdated now
+			renderCacheState = current;
+			renderCacheArea = null;
+			return;
+		}
 
-		EastNorth center = Main.map.mapView.getCenter();
-		EastNorth leftop = Main.map.mapView.getEastNorth(0, 0);
-		EastNorth rightbot = Main.map.mapView.getEastNorth(
-				mv.getBounds().width, mv.getBounds().height);
+		if (current != renderCacheState || renderCache == null
+				|| renderCache.getWidth() != width
+				|| renderCache.getHeight() != height
+				|| !viewArea.equals(renderCacheArea)) {
+			long start = OsmInspectorMetrics.start();
+			renderClusters(current, mv, width, height, viewArea);
+			OsmInspectorMetrics.getInstance().stop(OsmInspectorMetrics.PAINT_RENDER_CLUSTERS, start);
+		} else {
+			OsmInspectorMetrics.getInstance().increment(OsmInspectorMetrics.PAINT_CACHED, 1);
+		}
 
-		Envelope envelope = new Envelope(Math.min(leftop.east(),
-				rightbot.east()), Math.max(leftop.east(), rightbot.east()),
-				Math.min(rightbot.north(), leftop.north()), Math.max(
-						rightbot.north(), leftop.north()));
+		g.drawImage(renderCache, 0, 0, null);
+	}
 
-		Envelope envelope2 = new Envelope(Math.min(min.lat(), max.lat()),
-				Math.max(min.lat(), max.lat()), Math.min(min.lon(), max.lon()),
-				Math.max(min.lon(), max.lon()));
+	/**
+	 * Renders the clusters of a state inside the view into the offscreen
+	 * image, which is reused by paint() until the state or the view changes.
+	 * The single bugs are rendered in tiles by {@link BugTileRenderer}.
+	 */
+	private void renderClusters(BugLayerState current, MapView mv, int width, int height,
+			Envelope viewArea) {
+		if (renderCache == null || renderCache.getWidth() != width
+				|| renderCache.getHeight() != height) {
+			renderCache = new BufferedImage(width, height,
+					BufferedImage.TYPE_INT_ARGB);
+		}
 
-		// ReferencedEnvelope mapArea = new ReferencedEnvelope(envelope, crs);
-		ReferencedEnvelope mapArea = new ReferencedEnvelope(envelope2, crsOSMI);
+		Graphics2D g = renderCache.createGraphics();
+		try {
+			g.setComposite(AlphaComposite.Clear);
+			g.fillRect(0, 0, width, height);
+			g.setComposite(AlphaComposite.SrcOver);
 
-		// System.out.println( "rendering bounds:" + envelope + " box " + box +
-		// " maparea " + mapArea );
+			double degreesPerPixel = viewArea.getWidth() / width;
+			int level = BugClusters.getLevel(degreesPerPixel * CLUSTER_CELL_PIXELS);
+			for (BugLayerState.Entry entry : current.getEntries()) {
+				paintClusters(g, mv, entry.getBugs(), level, viewArea);
+			}
+		} finally {
+			g.dispose();
+		}
+		renderCacheState = current;
+		renderCacheArea = viewArea;
+	}
 
-		renderer.setInteractive(false);
-		renderer.paint(g, mv.getBounds(), mapArea);
-		bIsChanged = false;
+	/**
+	 * Draws one circle with the bug count per grid cell, placed in the
+	 * projection of the map view. Only the few cluster centres are projected
+	 * per paint.
+	 */
+	private void paintClusters(Graphics2D g, MapView mv, BugSet bugs,
+			int level, Envelope viewArea) {
+		Projection projection = Main.getProjection();
+		Color fill = BugStyle.getFillColour(bugs.getTypeName());
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		FontMetrics metrics = g.getFontMetrics();
+		for (BugClusters.Cluster cluster : bugs.queryClusters(level, viewArea)) {
+			java.awt.Point centre = mv.getPoint(projection.latlon2eastNorth(
+					new LatLon(cluster.getY(), cluster.getX())));
+			int x = centre.x;
+			int y = centre.y;
+			int size = (int) Math.min(CLUSTER_MAX_SIZE,
+					CLUSTER_MIN_SIZE + 6 * Math.log10(cluster.getCount()));
+			g.setColor(fill);
+			g.fillOval(x - size / 2, y - size / 2, size, size);
+			g.setColor(CLUSTER_OUTLINE);
+			g.drawOval(x - size / 2, y - size / 2, size, size);
+			if (cluster.getCount() > 1) {
+				String count = String.valueOf(cluster.getCount());
+				g.drawString(count, x - metrics.stringWidth(count) / 2,
+						y + metrics.getAscent() / 2 - 1);
+			}
+		}
 	}
 
 	@Override
@@ -491,65 +670,52 @@ public class OsmInspectorLayer extends Layer {
 	}
 
 	public boolean isChanged() {
-		return bIsChanged;
+		return state != renderCacheState;
 	}
 
 	public void selectFeatures( int x, int y )
 	{
+		long start = OsmInspectorMetrics.start();
 		int pixelDelta   = 5;
-		LatLon clickUL   = Main.map.mapView.getLatLon( x - pixelDelta, y - pixelDelta );
-		LatLon clickLR   = Main.map.mapView.getLatLon( x + pixelDelta, y + pixelDelta );
+		// the east/north rectangle is a linear function of the pixels, the
+		// bugs are tested on their coordinates projected before
+		Projection projection = Main.getProjection();
+		EastNorth clickUL = Main.map.mapView.getEastNorth( x - pixelDelta, y - pixelDelta );
+		EastNorth clickLR = Main.map.mapView.getEastNorth( x + pixelDelta, y + pixelDelta );
 		
-		Envelope envelope = new Envelope(
-				Math.min(clickUL.lon(), clickLR.lon()),
-				Math.max(clickUL.lon(), clickLR.lon()),
-				Math.min(clickUL.lat(), clickLR.lat()),
-				Math.max(clickUL.lat(), clickLR.lat()) 
+		Envelope clickArea = new Envelope(
+				clickUL.east(), clickLR.east(),
+				clickUL.north(), clickLR.north()
 			);
 		
-		ReferencedEnvelope mapArea = new ReferencedEnvelope(envelope, crsOSMI);
-		
-		Filter filter = (Filter) ff.intersects(ff.property("msGeometry"), ff.literal(mapArea));
 //
-//  Select features in all layers
+//  Select features in all layers, restyling only the layers whose
+//  selection changed
 //
-		context.clearLayerList();
-
-		for (int idx = 0; idx < arrFeatures.size(); ++idx) 
+		BugLayerState current = state;
+		Map<String, Set<FeatureId>> changed = new HashMap<String, Set<FeatureId>>();
+		for (BugLayerState.Entry entry : current.getEntries()) 
 		{
-			OSMIFeatureTracker tracker = arrFeatures.get(idx);
-			FeatureCollection<SimpleFeatureType, SimpleFeature> features = tracker.getFeatures();
-			
-			SimpleFeatureSource tempfs = DataUtilities.source( features );
-			FeatureCollection<SimpleFeatureType, SimpleFeature> selectedFeatures;
+			Set<FeatureId> IDs = new HashSet<FeatureId>();
 			
-			try 
+			for (SimpleFeature feature : entry.getBugs().pick(projection, clickArea)) 
 			{
-				selectedFeatures = tempfs.getFeatures(filter);
-
-	        	FeatureIterator<SimpleFeature> iter = selectedFeatures.features();
-	            Set<FeatureId> IDs = new HashSet<FeatureId>();
-	
-	            System.out.println( "Selected features " + selectedFeatures.size());
-	            
-	            while (iter.hasNext()) 
-	            {
-	                SimpleFeature feature = iter.next();
-	                IDs.add(feature.getIdentifier());
-	            }
-	
-	            iter.close();
-	
-	            geometryType = selectGeomType.get( idx + layerOffset );
-				Style style = createDefaultStyle( idx + layerOffset, IDs );
-				context.addLayer( features, style );
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				IDs.add(feature.getIdentifier());
 			}
+			
+			if (!IDs.equals(entry.getSelected()))
+				changed.put(entry.getTypeKey(), IDs);
 		}
-		
-		bIsChanged = true;
+		if (!changed.isEmpty())
+		{
+			// the cached base rules are reused, only the id filters are new;
+			// bugs merged after the query are not selected
+			synchronized (writeLock) {
+				state = state.withSelection(changed);
+			}
+			stateChanged();
+		}
+		OsmInspectorMetrics.getInstance().stop(OsmInspectorMetrics.SELECT_QUERY, start);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,286 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONValue;
+
+/**
+ * Timings and counters of the plugin's hot paths, to diagnose slow
+ * sessions. Timings are kept in histograms with power of two buckets of
+ * microseconds, so recording stays cheap and the memory use constant. Both
+ * kinds of metrics are created on first use and can be dumped to CSV or
+ * JSON.
+ *
+ * @author snikhil
+ *
+ */
+public class OsmInspectorMetrics {
+
+	/** GetFeature round-trip of one tile including parsing, ms */
+	public static final String WFS_REQUEST = "wfs.request";
+	/** bugs received from the WFS server */
+	public static final String WFS_FEATURES = "wfs.features";
+	/**
+	 * GeoJSON size of the complete tiles downloaded; disk cache hits and
+	 * responses cut off at maxFeatures are not counted
+	 */
+	public static final String WFS_BYTES = "wfs.bytes";
+	/** failed requests that were repeated */
+	public static final String WFS_RETRIES = "wfs.retries";
+	/** requests that failed after all retries, also those run in the background */
+	public static final String WFS_FAILURES = "wfs.failures";
+	/** tiles with too many bugs for one request, fetched as quarters */
+	public static final String WFS_SPLITS = "wfs.splits";
+	/** tiles of the highest zoom cut off at maxFeatures, never cached */
+	public static final String WFS_TRUNCATED = "wfs.truncated";
+	/** reading one tile from the disk cache, ms */
+	public static final String CACHE_READ = "cache.read";
+	public static final String CACHE_FEATURES = "cache.features";
+	/** merging one tile into the layer, ms */
+	public static final String MERGE = "merge";
+	public static final String MERGE_ADDED = "merge.added";
+	public static final String MERGE_DUPLICATES = "merge.duplicates";
+	/** bugs without a position or problem id, left out of the layer */
+	public static final String MERGE_REJECTED = "merge.rejected";
+	/** finding the bugs under a click, ms */
+	public static final String SELECT_QUERY = "select.query";
+	/** rendering the missing screen tiles of the single bugs of a paint, ms */
+	public static final String PAINT_RENDER_TILES = "paint.render.tiles";
+	/** rendering the clusters into the offscreen image, ms */
+	public static final String PAINT_RENDER_CLUSTERS = "paint.render.clusters";
+	/** paints that reused the offscreen image or all tiles */
+	public static final String PAINT_CACHED = "paint.cached";
+	/** screen tiles rendered, the others of a paint came from the cache */
+	public static final String PAINT_TILES = "paint.tiles";
+
+	public static final String[] COLUMNS = { "metric", "count", "total ms",
+			"mean ms", "min ms", "p50 ms", "p90 ms", "p99 ms", "max ms" };
+
+	private static final int BUCKETS = 40;
+
+	private static OsmInspectorMetrics instance;
+
+	private final LinkedHashMap<String, Histogram> histograms = new LinkedHashMap<String, Histogram>();
+	private final LinkedHashMap<String, AtomicLong> counters = new LinkedHashMap<String, AtomicLong>();
+
+	public static synchronized OsmInspectorMetrics getInstance() {
+		if (instance == null)
+			instance = new OsmInspectorMetrics();
+		return instance;
+	}
+
+	/**
+	 * Latency distribution of one operation
+	 */
+	public static class Histogram {
+		// bucket i counts durations below 2^i microseconds
+		private final long[] buckets = new long[BUCKETS];
+		private long count;
+		private long sum;
+		private long min = Long.MAX_VALUE;
+		private long max;
+
+		public synchronized void add(long micros) {
+			int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+			++buckets[Math.min(bucket, BUCKETS - 1)];
+			++count;
+			sum += micros;
+			min = Math.min(min, micros);
+			max = Math.max(max, micros);
+		}
+
+		public synchronized long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return sum of all durations in milliseconds
+		 */
+		public synchronized double getTotal() {
+			return sum / 1000.0;
+		}
+
+		public synchronized double getMean() {
+			return count == 0 ? 0 : sum / 1000.0 / count;
+		}
+
+		public synchronized double getMin() {
+			return count == 0 ? 0 : min / 1000.0;
+		}
+
+		public synchronized double getMax() {
+			return max / 1000.0;
+		}
+
+		/**
+		 * @return upper bound of the bucket holding the percentile, in
+		 *         milliseconds
+		 */
+		public synchronized double getPercentile(double percentile) {
+			if (count == 0)
+				return 0;
+			long rank = (long) Math.ceil(percentile / 100.0 * count);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				seen += buckets[i];
+				if (seen >= rank)
+					return Math.min(max, 1L << i) / 1000.0;
+			}
+			return max / 1000.0;
+		}
+	}
+
+	/**
+	 * @return System.nanoTime(), to be passed to {@link #stop(String, long)}
+	 */
+	public static long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the time passed since start under name
+	 */
+	public void stop(String name, long start) {
+		getHistogram(name).add((System.nanoTime() - start) / 1000L);
+	}
+
+	public void increment(String name, long delta) {
+		getCounter(name).addAndGet(delta);
+	}
+
+	public synchronized Histogram getHistogram(String name) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histogram = new Histogram();
+			histograms.put(name, histogram);
+		}
+		return histogram;
+	}
+
+	private synchronized AtomicLong getCounter(String name) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			counter = new AtomicLong();
+			counters.put(name, counter);
+		}
+		return counter;
+	}
+
+	public synchronized long getCount(String name) {
+		AtomicLong counter = counters.get(name);
+		return counter == null ? 0 : counter.get();
+	}
+
+	/**
+	 * @return bugs per second received from the server, including the
+	 *         request time
+	 */
+	public synchronized double getFeaturesPerSecond() {
+		Histogram requests = histograms.get(WFS_REQUEST);
+		double millis = requests == null ? 0 : requests.getTotal();
+		return millis == 0 ? 0 : getCount(WFS_FEATURES) * 1000.0 / millis;
+	}
+
+	public synchronized void reset() {
+		histograms.clear();
+		counters.clear();
+	}
+
+	/**
+	 * @return one row per metric: name, count, total, mean, min, p50, p90,
+	 *         p99 and max; counters only fill the count
+	 */
+	public synchronized List<Object[]> getRows() {
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			Histogram h = entry.getValue();
+			rows.add(new Object[] { entry.getKey(), h.getCount(), h.getTotal(),
+					h.getMean(), h.getMin(), h.getPercentile(50),
+					h.getPercentile(90), h.getPercentile(99), h.getMax() });
+		}
+		for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+			rows.add(new Object[] { entry.getKey(), entry.getValue().get(), null,
+					null, null, null, null, null, null });
+		}
+		rows.add(new Object[] { "wfs.features/s", Math.round(getFeaturesPerSecond()),
+				null, null, null, null, null, null, null });
+		return rows;
+	}
+
+	/**
+	 * Writes all metrics to a file, as JSON if its name ends with .json and
+	 * as CSV otherwise
+	 */
+	public void dump(File file) throws IOException {
+		List<Object[]> rows = getRows();
+		Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file), "UTF-8"));
+		try {
+			if (file.getName().toLowerCase(Locale.ENGLISH).endsWith(".json"))
+				writeJson(writer, rows);
+			else
+				writeCsv(writer, rows);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static void writeCsv(Writer writer, List<Object[]> rows) throws IOException {
+		for (int i = 0; i < COLUMNS.length; ++i) {
+			writer.write(i == 0 ? COLUMNS[i] : "," + COLUMNS[i]);
+		}
+		writer.write("\n");
+		for (Object[] row : rows) {
+			for (int i = 0; i < row.length; ++i) {
+				if (i > 0)
+					writer.write(",");
+				if (row[i] != null)
+					writer.write(String.valueOf(row[i]));
+			}
+			writer.write("\n");
+		}
+	}
+
+	private static void writeJson(Writer writer, List<Object[]> rows) throws IOException {
+		writer.write("[\n");
+		for (int r = 0; r < rows.size(); ++r) {
+			Object[] row = rows.get(r);
+			writer.write("  {");
+			boolean first = true;
+			for (int i = 0; i < row.length; ++i) {
+				if (row[i] == null)
+					continue;
+				if (!first)
+					writer.write(", ");
+				first = false;
+				writer.write(JSONValue.toJSONString(COLUMNS[i]));
+				writer.write(": ");
+				writer.write(JSONValue.toJSONString(row[i]));
+			}
+			writer.write(r < rows.size() - 1 ? "},\n" : "}\n");
+		}
+		writer.write("]\n");
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("OsmInspectorMetrics");
+		for (Object[] row : getRows()) {
+			sb.append("\n  ").append(row[0]).append(": ").append(row[1]);
+			if (row[3] != null)
+				sb.append(String.format(" mean %.2f ms p90 %.2f ms", row[3], row[6]));
+		}
+		return sb.toString();
+	}
+}
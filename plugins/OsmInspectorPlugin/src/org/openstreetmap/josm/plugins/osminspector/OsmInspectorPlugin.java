@@ -41,6 +41,9 @@ MouseListener, PreferenceChangedListener, DownloadSelection{
     private Bounds bBox;
 
     private OsmInspectorLayer inspectorLayer;
+
+    /** loads the bugs of the view after zooming or panning, if enabled */
+    private BugAutoLoader autoLoader;
     
 	public OsmInspectorPlugin(PluginInformation info) {
 		super(info);
@@ -79,6 +82,10 @@ MouseListener, PreferenceChangedListener, DownloadSelection{
 			System.out.println("newFrame is null");
             MapView.removeLayerChangeListener(this);
             NavigatableComponent.removeZoomChangeListener(this);
+            if (autoLoader != null)
+                autoLoader.stop();
+            if (inspectorLayer != null)
+                inspectorLayer.getPrefetcher().stop();
         } else {
             /* add MapDust dialog window */
             if (Main.map != null && Main.map.mapView != null) {
@@ -86,6 +93,8 @@ MouseListener, PreferenceChangedListener, DownloadSelection{
                 Main.map.setBounds(newFrame.getBounds());
                 
                 /* add Listeners */
+                if (autoLoader == null)
+                    autoLoader = new BugAutoLoader(this);
                 NavigatableComponent.addZoomChangeListener(this);
                 MapView.addLayerChangeListener(this);
                 Main.map.mapView.addMouseListener(this);
@@ -123,12 +132,21 @@ MouseListener, PreferenceChangedListener, DownloadSelection{
 
 	@Override
 	public void layerRemoved(Layer oldLayer) {
-		
+		if (oldLayer != inspectorLayer)
+			return;
+		/* the layer is gone, nothing may load into it any more */
+		if (autoLoader != null)
+			autoLoader.stop();
+		inspectorLayer.getPrefetcher().stop();
+		inspectorLayer = null;
 	}
 
 	@Override
 	public void zoomChanged() {
-		
+		if (autoLoader != null)
+			autoLoader.viewChanged();
+		if (inspectorLayer != null)
+			inspectorLayer.getPrefetcher().viewChanged();
 	}
 
 	@Override
@@ -136,7 +154,8 @@ MouseListener, PreferenceChangedListener, DownloadSelection{
 	//  Delegate feature selection to layer
 	//
 	public void mouseClicked(MouseEvent arg0) {
-		inspectorLayer.selectFeatures(arg0.getX(), arg0.getY());
+		if (inspectorLayer != null)
+			inspectorLayer.selectFeatures(arg0.getX(), arg0.getY());
 	}
 
 	@Override
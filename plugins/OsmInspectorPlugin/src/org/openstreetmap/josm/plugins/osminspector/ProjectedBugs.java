@@ -0,0 +1,278 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.opengis.feature.simple.SimpleFeature;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.projection.Projection;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * The coordinates of some bugs projected into JOSM's east/north space, kept
+ * in primitive arrays. Every vertex is transformed once per projection, so
+ * painting and picking only scale and translate. Each bug consists of
+ * parts: the points, lines and polygon rings of its geometry.
+ *
+ * @author snikhil
+ *
+ */
+public final class ProjectedBugs {
+
+	private final Projection projection;
+	private final SimpleFeature[] features;
+	// east and north of every vertex
+	private final double[] coords;
+	// first vertex of every part, one more entry than parts
+	private final int[] partStarts;
+	// first part of every bug, one more entry than bugs
+	private final int[] bugParts;
+	// bugs with polygon geometries, their parts are rings
+	private final boolean[] areal;
+	// holds the positions of the bugs
+	private final STRtree index;
+
+	private ProjectedBugs(Projection projection, SimpleFeature[] features, double[] coords,
+			int[] partStarts, int[] bugParts, boolean[] areal, STRtree index) {
+		this.projection = projection;
+		this.features = features;
+		this.coords = coords;
+		this.partStarts = partStarts;
+		this.bugParts = bugParts;
+		this.areal = areal;
+		this.index = index;
+	}
+
+	/**
+	 * Transforms the geometries of the bugs, positions in the result are
+	 * those in the array
+	 */
+	public static ProjectedBugs project(SimpleFeature[] features, Projection projection) {
+		Builder builder = new Builder(projection, features.length);
+		for (SimpleFeature feature : features) {
+			builder.addBug((Geometry) feature.getDefaultGeometry());
+		}
+		return builder.build(features);
+	}
+
+	private static class Builder {
+		private final Projection projection;
+		private double[] coords = new double[1024];
+		private int vertices;
+		private int[] partStarts = new int[256];
+		private int parts;
+		private final int[] bugParts;
+		private final boolean[] areal;
+		private int bugs;
+		private final STRtree index = new STRtree();
+
+		Builder(Projection projection, int size) {
+			this.projection = projection;
+			bugParts = new int[size + 1];
+			areal = new boolean[size];
+		}
+
+		void addBug(Geometry geom) {
+			bugParts[bugs] = parts;
+			int first = vertices;
+			if (geom != null) {
+				areal[bugs] = geom.getDimension() == 2;
+				addGeometry(geom);
+			}
+			Envelope envelope = new Envelope();
+			for (int v = first; v < vertices; ++v) {
+				envelope.expandToInclude(coords[2 * v], coords[2 * v + 1]);
+			}
+			if (!envelope.isNull())
+				index.insert(envelope, Integer.valueOf(bugs));
+			++bugs;
+		}
+
+		private void addGeometry(Geometry geom) {
+			if (geom instanceof GeometryCollection) {
+				for (int i = 0; i < geom.getNumGeometries(); ++i) {
+					addGeometry(geom.getGeometryN(i));
+				}
+			} else if (geom instanceof Polygon) {
+				Polygon polygon = (Polygon) geom;
+				addPart(polygon.getExteriorRing().getCoordinates());
+				for (int i = 0; i < polygon.getNumInteriorRing(); ++i) {
+					addPart(polygon.getInteriorRingN(i).getCoordinates());
+				}
+			} else {
+				addPart(geom.getCoordinates());
+			}
+		}
+
+		private void addPart(Coordinate[] part) {
+			if (part.length == 0)
+				return;
+			if (parts + 1 >= partStarts.length)
+				partStarts = Arrays.copyOf(partStarts, 2 * partStarts.length);
+			partStarts[parts++] = vertices;
+			if (2 * (vertices + part.length) > coords.length)
+				coords = Arrays.copyOf(coords, Math.max(2 * coords.length, 2 * (vertices + part.length)));
+			for (Coordinate c : part) {
+				EastNorth en = projection.latlon2eastNorth(new LatLon(c.y, c.x));
+				coords[2 * vertices] = en.east();
+				coords[2 * vertices + 1] = en.north();
+				++vertices;
+			}
+		}
+
+		ProjectedBugs build(SimpleFeature[] features) {
+			bugParts[bugs] = parts;
+			partStarts[parts] = vertices;
+			index.build();
+			return new ProjectedBugs(projection, features, Arrays.copyOf(coords, 2 * vertices),
+					Arrays.copyOf(partStarts, parts + 1), bugParts, areal, index);
+		}
+	}
+
+	/**
+	 * @return the projection the coordinates are in
+	 */
+	public Projection getProjection() {
+		return projection;
+	}
+
+	public int size() {
+		return areal.length;
+	}
+
+	/**
+	 * @return the feature the coordinates of the bug were taken from
+	 */
+	public SimpleFeature getFeature(int bug) {
+		return features[bug];
+	}
+
+	/**
+	 * @return the positions of the bugs whose bounding box intersects the
+	 *         east/north area
+	 */
+	public int[] query(Envelope area) {
+		List<?> candidates = index.query(area);
+		int[] result = new int[candidates.size()];
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = (Integer) candidates.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * @return <code>true</code> if a vertex or segment of the bug lies in the
+	 *         east/north area or, for polygons, the area lies inside it
+	 */
+	public boolean intersects(int bug, Envelope area) {
+		double[] range = new double[2];
+		for (int part = getFirstPart(bug); part < getEndPart(bug); ++part) {
+			int start = getPartStart(part);
+			int end = getPartEnd(part);
+			if (end - start == 1 && area.contains(coords[2 * start], coords[2 * start + 1]))
+				return true;
+			for (int v = start; v < end - 1; ++v) {
+				if (clip(coords[2 * v], coords[2 * v + 1], coords[2 * v + 2],
+						coords[2 * v + 3], area, range))
+					return true;
+			}
+		}
+		return areal[bug] && contains(bug, area.centre().x, area.centre().y);
+	}
+
+	/**
+	 * Even-odd test over all rings of the bug
+	 */
+	private boolean contains(int bug, double x, double y) {
+		boolean inside = false;
+		for (int part = getFirstPart(bug); part < getEndPart(bug); ++part) {
+			int end = getPartEnd(part);
+			for (int v = getPartStart(part), w = end - 1; v < end; w = v++) {
+				double yv = coords[2 * v + 1];
+				double yw = coords[2 * w + 1];
+				if ((yv > y) != (yw > y)
+						&& x < (coords[2 * w] - coords[2 * v]) * (y - yv) / (yw - yv) + coords[2 * v])
+					inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+	/**
+	 * Liang-Barsky test whether the segment crosses the area
+	 */
+	private static boolean clip(double x0, double y0, double x1, double y1,
+			Envelope area, double[] range) {
+		double dx = x1 - x0;
+		double dy = y1 - y0;
+		range[0] = 0;
+		range[1] = 1;
+		return clip(-dx, x0 - area.getMinX(), range)
+				&& clip(dx, area.getMaxX() - x0, range)
+				&& clip(-dy, y0 - area.getMinY(), range)
+				&& clip(dy, area.getMaxY() - y0, range);
+	}
+
+	private static boolean clip(double p, double q, double[] range) {
+		if (p == 0)
+			return q >= 0;
+		double t = q / p;
+		if (p < 0) {
+			if (t > range[1])
+				return false;
+			range[0] = Math.max(range[0], t);
+		} else {
+			if (t < range[0])
+				return false;
+			range[1] = Math.min(range[1], t);
+		}
+		return true;
+	}
+
+	public boolean isAreal(int bug) {
+		return areal[bug];
+	}
+
+	/**
+	 * @return the first part of the bug
+	 */
+	public int getFirstPart(int bug) {
+		return bugParts[bug];
+	}
+
+	/**
+	 * @return one past the last part of the bug
+	 */
+	public int getEndPart(int bug) {
+		return bugParts[bug + 1];
+	}
+
+	/**
+	 * @return the first vertex of the part
+	 */
+	public int getPartStart(int part) {
+		return partStarts[part];
+	}
+
+	/**
+	 * @return one past the last vertex of the part
+	 */
+	public int getPartEnd(int part) {
+		return partStarts[part + 1];
+	}
+
+	public double getEast(int vertex) {
+		return coords[2 * vertex];
+	}
+
+	public double getNorth(int vertex) {
+		return coords[2 * vertex + 1];
+	}
+}
@@ -0,0 +1,255 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
+
+/**
+ * Splits requested areas into a fixed grid of lat/lon tiles and remembers
+ * which tiles have already been loaded for each WFS type, so that panning
+ * around only downloads the tiles that came into view.
+ *
+ * The tile size follows the size of the requested area, a tile at zoom z
+ * spans 360 / 2^z degrees in both directions.
+ *
+ * @author snikhil
+ *
+ */
+public class TileGrid {
+
+	public static final int MIN_ZOOM = 2;
+	public static final int MAX_ZOOM = 16;
+	/** how many zoom levels below a tile are checked for full coverage */
+	private static final int CHILD_DEPTH = 2;
+
+	private final HashMap<String, HashSet<Tile>> loaded = new HashMap<String, HashSet<Tile>>();
+	// tiles some import is currently fetching, not handed out again
+	private final HashMap<String, HashSet<Tile>> pending = new HashMap<String, HashSet<Tile>>();
+
+	/**
+	 * A single grid cell
+	 */
+	public static class Tile {
+		private final int zoom;
+		private final int x;
+		private final int y;
+
+		public Tile(int zoom, int x, int y) {
+			this.zoom = zoom;
+			this.x = x;
+			this.y = y;
+		}
+
+		public static double getTileDegrees(int zoom) {
+			return 360.0 / (1 << zoom);
+		}
+
+		public int getZoom() {
+			return zoom;
+		}
+
+		public double getMinLon() {
+			return x * getTileDegrees(zoom) - 180.0;
+		}
+
+		public double getMaxLon() {
+			return (x + 1) * getTileDegrees(zoom) - 180.0;
+		}
+
+		public double getMinLat() {
+			return y * getTileDegrees(zoom) - 90.0;
+		}
+
+		public double getMaxLat() {
+			return (y + 1) * getTileDegrees(zoom) - 90.0;
+		}
+
+		public Tile getParent() {
+			return new Tile(zoom - 1, x >> 1, y >> 1);
+		}
+
+		public Tile[] getChildren() {
+			return new Tile[] { new Tile(zoom + 1, 2 * x, 2 * y),
+					new Tile(zoom + 1, 2 * x + 1, 2 * y),
+					new Tile(zoom + 1, 2 * x, 2 * y + 1),
+					new Tile(zoom + 1, 2 * x + 1, 2 * y + 1) };
+		}
+
+		public boolean intersects(Bounds bounds) {
+			LatLon min = bounds.getMin();
+			LatLon max = bounds.getMax();
+			return getMinLon() <= Math.max(min.lon(), max.lon())
+					&& getMaxLon() >= Math.min(min.lon(), max.lon())
+					&& getMinLat() <= Math.max(min.lat(), max.lat())
+					&& getMaxLat() >= Math.min(min.lat(), max.lat());
+		}
+
+		/**
+		 * @return a key unique over all zoom levels, used by the disk cache
+		 */
+		public String getKey() {
+			return zoom + "_" + x + "_" + y;
+		}
+
+		@Override
+		public int hashCode() {
+			return (zoom * 31 + x) * 31 + y;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Tile))
+				return false;
+			Tile other = (Tile) obj;
+			return zoom == other.zoom && x == other.x && y == other.y;
+		}
+
+		@Override
+		public String toString() {
+			return getKey();
+		}
+	}
+
+	/**
+	 * Picks the zoom level at which the area is covered by two to four tiles
+	 * in its larger direction
+	 */
+	public static int getZoom(Bounds bounds) {
+		LatLon min = bounds.getMin();
+		LatLon max = bounds.getMax();
+		double span = Math.max(Math.abs(max.lon() - min.lon()),
+				Math.abs(max.lat() - min.lat()));
+		if (span <= 0)
+			return MAX_ZOOM;
+		int zoom = (int) Math.ceil(Math.log(360.0 / span) / Math.log(2)) + 1;
+		return Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+	}
+
+	/**
+	 * @return all tiles at the given zoom level intersecting the area
+	 */
+	public static List<Tile> getTiles(Bounds bounds, int zoom) {
+		LatLon min = bounds.getMin();
+		LatLon max = bounds.getMax();
+		double deg = Tile.getTileDegrees(zoom);
+		int limit = (1 << zoom) - 1;
+		// the latitudes only span half as many tiles, lat 90 lies on the
+		// upper edge of the last row
+		int rowLimit = Math.max(0, (1 << zoom) / 2 - 1);
+		int minX = clamp((int) Math.floor((Math.min(min.lon(), max.lon()) + 180.0) / deg), limit);
+		int maxX = clamp((int) Math.floor((Math.max(min.lon(), max.lon()) + 180.0) / deg), limit);
+		int minY = clamp((int) Math.floor((Math.min(min.lat(), max.lat()) + 90.0) / deg), rowLimit);
+		int maxY = clamp((int) Math.floor((Math.max(min.lat(), max.lat()) + 90.0) / deg), rowLimit);
+
+		List<Tile> tiles = new ArrayList<Tile>();
+		for (int y = minY; y <= maxY; ++y) {
+			for (int x = minX; x <= maxX; ++x) {
+				tiles.add(new Tile(zoom, x, y));
+			}
+		}
+		return tiles;
+	}
+
+	private static int clamp(int value, int limit) {
+		return Math.max(0, Math.min(limit, value));
+	}
+
+	/**
+	 * @return the tiles of the area that have not been loaded for typeName
+	 *         yet, neither directly nor through a larger or smaller tile
+	 */
+	public synchronized List<Tile> getMissingTiles(String typeName, Bounds bounds) {
+		HashSet<Tile> done = loaded.get(typeName);
+		List<Tile> missing = new ArrayList<Tile>();
+		for (Tile tile : getTiles(bounds, getZoom(bounds))) {
+			if (done == null || !isCovered(done, tile, CHILD_DEPTH))
+				missing.add(tile);
+		}
+		return missing;
+	}
+
+	/**
+	 * Like {@link #getMissingTiles(String, Bounds)}, but leaves out the tiles
+	 * other imports are fetching and marks the returned ones as pending until
+	 * they are loaded or released
+	 */
+	public synchronized List<Tile> claimMissingTiles(String typeName, Bounds bounds) {
+		List<Tile> missing = getMissingTiles(typeName, bounds);
+		HashSet<Tile> fetching = getSet(pending, typeName);
+		for (Iterator<Tile> it = missing.iterator(); it.hasNext();) {
+			if (!fetching.add(it.next()))
+				it.remove();
+		}
+		return missing;
+	}
+
+	/**
+	 * Claims a single tile unless it is loaded already or being fetched
+	 * 
+	 * @return <code>true</code> if the caller has to fetch the tile and
+	 *         mark it loaded or release it afterwards
+	 */
+	public synchronized boolean claimTile(String typeName, Tile tile) {
+		HashSet<Tile> done = loaded.get(typeName);
+		if (done != null && isCovered(done, tile, CHILD_DEPTH))
+			return false;
+		return getSet(pending, typeName).add(tile);
+	}
+
+	/**
+	 * Gives a claimed tile back when its import failed or was canceled
+	 */
+	public synchronized void release(String typeName, Tile tile) {
+		getSet(pending, typeName).remove(tile);
+	}
+
+	public synchronized void markLoaded(String typeName, Tile tile) {
+		getSet(pending, typeName).remove(tile);
+		getSet(loaded, typeName).add(tile);
+	}
+
+	public synchronized void clear() {
+		loaded.clear();
+		pending.clear();
+	}
+
+	private static HashSet<Tile> getSet(HashMap<String, HashSet<Tile>> tiles, String typeName) {
+		HashSet<Tile> set = tiles.get(typeName);
+		if (set == null) {
+			set = new HashSet<Tile>();
+			tiles.put(typeName, set);
+		}
+		return set;
+	}
+
+	private static boolean isCovered(HashSet<Tile> done, Tile tile, int depth) {
+		for (Tile t = tile; t.getZoom() >= MIN_ZOOM; t = t.getParent()) {
+			if (done.contains(t))
+				return true;
+		}
+		if (depth == 0 || tile.getZoom() >= MAX_ZOOM)
+			return false;
+		for (Tile child : tile.getChildren()) {
+			if (!isCoveredByChildren(done, child, depth - 1))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isCoveredByChildren(HashSet<Tile> done, Tile tile, int depth) {
+		if (done.contains(tile))
+			return true;
+		if (depth == 0 || tile.getZoom() >= MAX_ZOOM)
+			return false;
+		for (Tile child : tile.getChildren()) {
+			if (!isCoveredByChildren(done, child, depth - 1))
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,262 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.DataUtilities;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.openstreetmap.josm.Main;
+
+/**
+ * Keeps one connection per Osm Inspector WFS endpoint for the whole JOSM
+ * session, so that the GetCapabilities document and the feature type schemas
+ * are only requested once instead of on every import. The type names and
+ * schemas are also written to disk, a cold start reads them from there and
+ * only connects to the server when a tile is not in the {@link BugTileCache}.
+ *
+ * @author snikhil
+ *
+ */
+public class WFSClientRegistry {
+
+	private static final String TYPES_KEY = "types";
+	private static final String SCHEMA_KEY = "schema.";
+	private static final String URL_KEY = "url";
+
+	private static WFSClientRegistry instance;
+
+	private final File metadataDir;
+	private final long timeToLive;
+	private final HashMap<String, Endpoint> endpoints = new HashMap<String, Endpoint>();
+
+	/**
+	 * The registry shared by all imports, persisted type lists are reused for
+	 * <code>osmInspector.capabilities.ttlHours</code>
+	 */
+	public static synchronized WFSClientRegistry getInstance() {
+		if (instance == null) {
+			File dir = new File(Main.pref.getPreferencesDir(), "osminspector/endpoints");
+			long ttl = Main.pref.getInteger("osmInspector.capabilities.ttlHours", 7 * 24) * 60L * 60L * 1000L;
+			instance = new WFSClientRegistry(dir, ttl);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param metadataDir
+	 *            directory the type names and schemas are stored in
+	 * @param timeToLive
+	 *            milliseconds after which the capabilities are requested
+	 *            again
+	 */
+	public WFSClientRegistry(File metadataDir, long timeToLive) {
+		this.metadataDir = metadataDir;
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * @return the endpoint for a GetCapabilities URL, created on first use
+	 */
+	public synchronized Endpoint getEndpoint(String capabilitiesUrl) {
+		Endpoint endpoint = endpoints.get(capabilitiesUrl);
+		if (endpoint == null) {
+			File file = new File(metadataDir, Integer.toHexString(capabilitiesUrl.hashCode()) + ".properties");
+			endpoint = new Endpoint(capabilitiesUrl, file, timeToLive);
+			endpoints.put(capabilitiesUrl, endpoint);
+		}
+		return endpoint;
+	}
+
+	/**
+	 * One WFS server; the data store, the type names and the schemas are
+	 * created lazily and shared by all clients of the endpoint
+	 */
+	public static class Endpoint {
+		private final String capabilitiesUrl;
+		private final File metadataFile;
+		private final long timeToLive;
+
+		private DataStore data;
+		// requests using a data store; one replaced by invalidate() is only
+		// disposed once the last of them has released it
+		private final IdentityHashMap<DataStore, Integer> users = new IdentityHashMap<DataStore, Integer>();
+		private String[] typeNames;
+		private final HashMap<String, SimpleFeatureType> schemas = new HashMap<String, SimpleFeatureType>();
+		private boolean loaded;
+
+		Endpoint(String capabilitiesUrl, File metadataFile, long timeToLive) {
+			this.capabilitiesUrl = capabilitiesUrl;
+			this.metadataFile = metadataFile;
+			this.timeToLive = timeToLive;
+		}
+
+		public String getCapabilitiesUrl() {
+			return capabilitiesUrl;
+		}
+
+		/**
+		 * Connects to the server, which requests and parses the capabilities,
+		 * on the first call only
+		 */
+		public synchronized DataStore getDataStore() throws IOException {
+			if (data != null)
+				return data;
+
+			@SuppressWarnings("rawtypes")
+			Map<String, Comparable> connectionParameters = new HashMap<String, Comparable>();
+			connectionParameters.put("WFSDataStoreFactory:GET_CAPABILITIES_URL", capabilitiesUrl);
+			connectionParameters.put("WFSDataStoreFactory:WFS_STRATEGY", "mapserver");
+			connectionParameters.put("WFSDataStoreFactory:LENIENT", true);
+			connectionParameters.put("WFSDataStoreFactory:TIMEOUT", 20000);
+			connectionParameters.put("WFSDataStoreFactory:BUFFER_SIZE", 10000);
+			data = DataStoreFinder.getDataStore(connectionParameters);
+			if (data == null)
+				throw new IOException("No WFS data store for " + capabilitiesUrl);
+			return data;
+		}
+
+		/**
+		 * @return the data store for one request, to be given back through
+		 *         {@link #releaseDataStore(DataStore)} when it is done
+		 */
+		public synchronized DataStore acquireDataStore() throws IOException {
+			DataStore store = getDataStore();
+			Integer count = users.get(store);
+			users.put(store, count == null ? 1 : count + 1);
+			return store;
+		}
+
+		public synchronized void releaseDataStore(DataStore store) {
+			Integer count = users.get(store);
+			if (count == null)
+				return;
+			if (count > 1) {
+				users.put(store, count - 1);
+			} else {
+				users.remove(store);
+				if (store != data)
+					store.dispose();
+			}
+		}
+
+		/**
+		 * @return the feature types of the endpoint, from memory, the disk or
+		 *         the capabilities document in this order
+		 */
+		public synchronized String[] getTypeNames() throws IOException {
+			if (!loaded)
+				load();
+			if (typeNames == null) {
+				typeNames = getDataStore().getTypeNames();
+				store();
+			}
+			return typeNames;
+		}
+
+		/**
+		 * @return the schema of typeName, a DescribeFeatureType request is
+		 *         only sent if it is neither in memory nor on disk
+		 */
+		public synchronized SimpleFeatureType getSchema(String typeName) throws IOException {
+			if (!loaded)
+				load();
+			SimpleFeatureType schema = schemas.get(typeName);
+			if (schema == null) {
+				schema = getDataStore().getSchema(typeName);
+				schemas.put(typeName, schema);
+				store();
+			}
+			return schema;
+		}
+
+		/**
+		 * Forgets everything known about the server, e.g. after a request
+		 * failed because the capabilities changed. Requests still running
+		 * keep their data store until they release it.
+		 */
+		public synchronized void invalidate() {
+			if (data != null && !users.containsKey(data))
+				data.dispose();
+			data = null;
+			typeNames = null;
+			schemas.clear();
+			loaded = true;
+			metadataFile.delete();
+		}
+
+		private void load() {
+			loaded = true;
+			if (!metadataFile.exists()
+					|| System.currentTimeMillis() - metadataFile.lastModified() > timeToLive)
+				return;
+			Properties props = new Properties();
+			try {
+				InputStream in = new FileInputStream(metadataFile);
+				try {
+					props.load(in);
+				} finally {
+					in.close();
+				}
+				if (!capabilitiesUrl.equals(props.getProperty(URL_KEY)))
+					return;
+				String types = props.getProperty(TYPES_KEY);
+				if (types != null && types.length() > 0)
+					typeNames = types.split(",");
+				for (String key : props.stringPropertyNames()) {
+					if (key.startsWith(SCHEMA_KEY)) {
+						String typeName = key.substring(SCHEMA_KEY.length());
+						schemas.put(typeName, DataUtilities.createType(typeName, props.getProperty(key)));
+					}
+				}
+			} catch (Exception e) {
+				// a broken file is just requested from the server again
+				e.printStackTrace();
+				typeNames = null;
+				schemas.clear();
+			}
+		}
+
+		private void store() {
+			Properties props = new Properties();
+			props.setProperty(URL_KEY, capabilitiesUrl);
+			if (typeNames != null) {
+				StringBuilder types = new StringBuilder();
+				for (String typeName : typeNames) {
+					if (types.length() > 0)
+						types.append(',');
+					types.append(typeName);
+				}
+				props.setProperty(TYPES_KEY, types.toString());
+			}
+			for (Map.Entry<String, SimpleFeatureType> entry : schemas.entrySet()) {
+				props.setProperty(SCHEMA_KEY + entry.getKey(), DataUtilities.encodeType(entry.getValue()));
+			}
+			File tmp = new File(metadataFile.getPath() + ".tmp");
+			try {
+				metadataFile.getParentFile().mkdirs();
+				OutputStream out = new FileOutputStream(tmp);
+				try {
+					props.store(out, "Osm Inspector WFS endpoint");
+				} finally {
+					out.close();
+				}
+				metadataFile.delete();
+				if (!tmp.renameTo(metadataFile))
+					throw new IOException("Cannot rename " + tmp + " to " + metadataFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+				tmp.delete();
+			}
+		}
+	}
+}
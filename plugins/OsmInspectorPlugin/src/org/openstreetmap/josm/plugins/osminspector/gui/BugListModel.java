@@ -0,0 +1,223 @@
+package org.openstreetmap.josm.plugins.osminspector.gui;
+
+import java.util.Locale;
+
+import javax.swing.AbstractListModel;
+
+import org.openstreetmap.josm.plugins.osminspector.OsmInspectorLayer.BugIndex;
+
+/**
+ * List model reading the bugs straight from a frozen copy of the layer's
+ * {@link BugIndex}, see {@link BugIndex#freeze()}.
+ * Rows are formatted only when the list asks for them, and filtering or
+ * sorting just maintains an array of index positions instead of copying the
+ * bugs.
+ *
+ * @author snikhil
+ *
+ */
+public class BugListModel extends AbstractListModel {
+
+	private static final long serialVersionUID = -2958261346071253818L;
+
+	public enum SortOrder {
+		/** the order the bugs were loaded in */
+		LOADED,
+		ID,
+		DESCRIPTION
+	}
+
+	private BugIndex index;
+	private String filter;
+	private SortOrder order = SortOrder.LOADED;
+	// index positions shown in each row, null if all bugs are shown in
+	// loaded order
+	private int[] rows;
+	private int rowCount;
+
+	public BugListModel(BugIndex index) {
+		this.index = index;
+	}
+
+	@Override
+	public int getSize() {
+		if (index == null)
+			return 0;
+		return rows == null ? index.size() : rowCount;
+	}
+
+	@Override
+	public Object getElementAt(int row) {
+		int i = getBugIndex(row);
+		return String.valueOf(index.getId(i)).concat(" : ").concat(index.getDesc(i));
+	}
+
+	/**
+	 * @return the position in the {@link BugIndex} of the bug shown in a row
+	 */
+	public int getBugIndex(int row) {
+		return rows == null ? row : rows[row];
+	}
+
+	/**
+	 * @return the row showing the bug at index position i, or -1
+	 */
+	public int getRow(int i) {
+		if (rows == null)
+			return i < getSize() ? i : -1;
+		for (int row = 0; row < rowCount; ++row) {
+			if (rows[row] == i)
+				return row;
+		}
+		return -1;
+	}
+
+	public void setIndex(BugIndex index) {
+		this.index = index;
+		rebuild();
+	}
+
+	/**
+	 * Only shows bugs whose id or description contains the text, ignoring
+	 * case; <code>null</code> or an empty text shows all bugs
+	 */
+	public void setFilter(String text) {
+		filter = text == null || text.length() == 0 ? null : text.toLowerCase(Locale.ENGLISH);
+		rebuild();
+	}
+
+	public void setSortOrder(SortOrder order) {
+		this.order = order;
+		rebuild();
+	}
+
+	public BugIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Switches to a newer copy of the same index and tells the list about
+	 * the bugs appended since, with a single event
+	 */
+	public void bugsAdded(BugIndex newIndex) {
+		if (index == null || newIndex == null) {
+			setIndex(newIndex);
+			return;
+		}
+		int first = index.size();
+		index = newIndex;
+		if (first >= index.size())
+			return;
+		if (rows == null) {
+			fireIntervalAdded(this, first, index.size() - 1);
+		} else if (order == SortOrder.LOADED) {
+			int oldCount = rowCount;
+			boolean[] matches = matchingDescriptions();
+			for (int i = first; i < index.size(); ++i) {
+				if (matches(i, matches))
+					appendRow(i);
+			}
+			if (rowCount > oldCount)
+				fireIntervalAdded(this, oldCount, rowCount - 1);
+		} else {
+			rebuild();
+		}
+	}
+
+	private void rebuild() {
+		int oldSize = getSize();
+		rows = null;
+		rowCount = 0;
+		if (index != null && (filter != null || order != SortOrder.LOADED)) {
+			rows = new int[Math.max(16, index.size())];
+			boolean[] matches = matchingDescriptions();
+			for (int i = 0; i < index.size(); ++i) {
+				if (matches(i, matches))
+					appendRow(i);
+			}
+			sort();
+		}
+		if (oldSize > 0)
+			fireIntervalRemoved(this, 0, oldSize - 1);
+		if (getSize() > 0)
+			fireIntervalAdded(this, 0, getSize() - 1);
+	}
+
+	private void appendRow(int i) {
+		if (rowCount == rows.length) {
+			int[] grown = new int[rows.length * 2];
+			System.arraycopy(rows, 0, grown, 0, rowCount);
+			rows = grown;
+		}
+		rows[rowCount++] = i;
+	}
+
+	/**
+	 * Evaluates the filter once per distinct description instead of once per
+	 * bug
+	 */
+	private boolean[] matchingDescriptions() {
+		if (filter == null)
+			return null;
+		boolean[] matches = new boolean[index.getDescriptionCount()];
+		for (int code = 0; code < matches.length; ++code) {
+			matches[code] = index.getDescription(code).toLowerCase(Locale.ENGLISH).contains(filter);
+		}
+		return matches;
+	}
+
+	private boolean matches(int i, boolean[] matches) {
+		if (filter == null)
+			return true;
+		int code = index.getDescCode(i);
+		// descriptions added after the filter was evaluated are checked
+		// directly
+		boolean descMatches = code < matches.length ? matches[code]
+				: index.getDescription(code).toLowerCase(Locale.ENGLISH).contains(filter);
+		return descMatches || String.valueOf(index.getId(i)).contains(filter);
+	}
+
+	private void sort() {
+		if (order == SortOrder.LOADED || rowCount < 2)
+			return;
+		int[] tmp = new int[rowCount];
+		mergeSort(rows, tmp, 0, rowCount);
+	}
+
+	/**
+	 * Stable merge sort of the index positions, avoids boxing them for
+	 * Collections.sort
+	 */
+	private void mergeSort(int[] a, int[] tmp, int from, int to) {
+		if (to - from < 2)
+			return;
+		int mid = (from + to) >>> 1;
+		mergeSort(a, tmp, from, mid);
+		mergeSort(a, tmp, mid, to);
+		if (compare(a[mid - 1], a[mid]) <= 0)
+			return;
+		System.arraycopy(a, from, tmp, from, to - from);
+		int i = from, j = mid;
+		for (int k = from; k < to; ++k) {
+			if (j >= to || (i < mid && compare(tmp[i], tmp[j]) <= 0))
+				a[k] = tmp[i++];
+			else
+				a[k] = tmp[j++];
+		}
+	}
+
+	private int compare(int a, int b) {
+		if (order == SortOrder.DESCRIPTION) {
+			int codeA = index.getDescCode(a);
+			int codeB = index.getDescCode(b);
+			if (codeA != codeB) {
+				int c = index.getDescription(codeA).compareTo(index.getDescription(codeB));
+				if (c != 0)
+					return c;
+			}
+		}
+		long idA = index.getId(a);
+		long idB = index.getId(b);
+		return idA < idB ? -1 : idA > idB ? 1 : 0;
+	}
+}
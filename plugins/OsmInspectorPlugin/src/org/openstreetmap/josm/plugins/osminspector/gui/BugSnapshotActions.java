@@ -0,0 +1,138 @@
+package org.openstreetmap.josm.plugins.osminspector.gui;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+import static org.openstreetmap.josm.tools.I18n.trn;
+
+import java.awt.event.ActionEvent;
+import java.io.File;
+import java.util.Map;
+
+import javax.swing.AbstractAction;
+import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.plugins.osminspector.BugSet;
+import org.openstreetmap.josm.plugins.osminspector.BugSnapshot;
+import org.openstreetmap.josm.plugins.osminspector.OsmInspectorLayer;
+
+/**
+ * Layer menu entries saving the loaded bugs to a {@link BugSnapshot} file and
+ * loading them back, e.g. for working without a connection.
+ *
+ * @author snikhil
+ *
+ */
+public class BugSnapshotActions {
+
+	private static final String EXTENSION = ".osmib";
+
+	private static File chooseFile(boolean save) {
+		JFileChooser chooser = new JFileChooser();
+		chooser.setDialogTitle(save ? tr("Export bug snapshot") : tr("Import bug snapshot"));
+		if (save)
+			chooser.setSelectedFile(new File("osminspector" + EXTENSION));
+		int result = save ? chooser.showSaveDialog(Main.parent) : chooser.showOpenDialog(Main.parent);
+		return result == JFileChooser.APPROVE_OPTION ? chooser.getSelectedFile() : null;
+	}
+
+	private static void showError(String message, Exception e) {
+		e.printStackTrace();
+		JOptionPane.showMessageDialog(Main.parent, message + ": " + e.getMessage(),
+				tr("Error"), JOptionPane.ERROR_MESSAGE);
+	}
+
+	/**
+	 * Writes all bugs of the layer to a snapshot file in the background
+	 */
+	public static class Export extends AbstractAction {
+		private static final long serialVersionUID = -5513829012410569853L;
+		private final OsmInspectorLayer layer;
+
+		public Export(OsmInspectorLayer layer) {
+			super(tr("Export bug snapshot..."));
+			this.layer = layer;
+		}
+
+		@Override
+		public void actionPerformed(ActionEvent e) {
+			final File file = chooseFile(true);
+			if (file == null)
+				return;
+			// the state is immutable, merges meanwhile are not written
+			final Map<String, BugSet> bugSets = layer.getState().getBugSets();
+			Main.worker.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						final int skipped = BugSnapshot.write(file, bugSets);
+						if (skipped > 0) {
+							SwingUtilities.invokeLater(new Runnable() {
+								@Override
+								public void run() {
+									JOptionPane.showMessageDialog(Main.parent, trn(
+											"{0} bug without a position was not exported",
+											"{0} bugs without a position were not exported",
+											skipped, skipped), tr("Warning"),
+											JOptionPane.WARNING_MESSAGE);
+								}
+							});
+						}
+					} catch (final Exception ex) {
+						SwingUtilities.invokeLater(new Runnable() {
+							@Override
+							public void run() {
+								showError(tr("Could not write {0}", file), ex);
+							}
+						});
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Merges the bugs of a snapshot file into the layer; the file is read in
+	 * the background and handed over one type at a time
+	 */
+	public static class Import extends AbstractAction {
+		private static final long serialVersionUID = 7725404911735620347L;
+		private final OsmInspectorLayer layer;
+
+		public Import(OsmInspectorLayer layer) {
+			super(tr("Import bug snapshot..."));
+			this.layer = layer;
+		}
+
+		@Override
+		public void actionPerformed(ActionEvent e) {
+			final File file = chooseFile(false);
+			if (file == null)
+				return;
+			Main.worker.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						BugSnapshot snapshot = BugSnapshot.open(file);
+						for (int i = 0; i < snapshot.getSectionCount(); ++i) {
+							publish(snapshot.getSection(i));
+						}
+					} catch (final Exception ex) {
+						SwingUtilities.invokeLater(new Runnable() {
+							@Override
+							public void run() {
+								showError(tr("Could not read {0}", file), ex);
+							}
+						});
+					}
+				}
+			});
+		}
+
+		private void publish(BugSnapshot.Section section) throws Exception {
+			// merged on the worker thread, the layer repaints itself
+			layer.loadFeatures(section.getTypeKey(), section.getTypeName(), section.getFeatures());
+		}
+	}
+}
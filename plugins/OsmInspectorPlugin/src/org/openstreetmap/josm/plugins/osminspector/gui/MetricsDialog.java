@@ -0,0 +1,139 @@
+package org.openstreetmap.josm.plugins.osminspector.gui;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.AbstractAction;
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.table.AbstractTableModel;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.gui.ExtendedDialog;
+import org.openstreetmap.josm.plugins.osminspector.OsmInspectorMetrics;
+
+/**
+ * Shows the {@link OsmInspectorMetrics} in a table and exports them to a CSV
+ * or JSON file.
+ *
+ * @author snikhil
+ *
+ */
+public class MetricsDialog extends ExtendedDialog {
+
+	private static final long serialVersionUID = -3140846311975617513L;
+
+	private static final int REFRESH = 0;
+	private static final int RESET = 1;
+	private static final int EXPORT = 2;
+
+	private final MetricsTableModel model = new MetricsTableModel();
+
+	/**
+	 * Opens the metrics dialog, for the layer menu
+	 */
+	public static class ShowAction extends AbstractAction {
+		private static final long serialVersionUID = 2709467000932961837L;
+
+		public ShowAction() {
+			super(tr("Show Osm Inspector metrics"));
+		}
+
+		@Override
+		public void actionPerformed(ActionEvent e) {
+			new MetricsDialog().showDialog();
+		}
+	}
+
+	private static class MetricsTableModel extends AbstractTableModel {
+		private static final long serialVersionUID = 8047731930549838231L;
+		private List<Object[]> rows = new ArrayList<Object[]>();
+
+		public void refresh() {
+			rows = OsmInspectorMetrics.getInstance().getRows();
+			fireTableDataChanged();
+		}
+
+		@Override
+		public int getRowCount() {
+			return rows.size();
+		}
+
+		@Override
+		public int getColumnCount() {
+			return OsmInspectorMetrics.COLUMNS.length;
+		}
+
+		@Override
+		public String getColumnName(int column) {
+			return OsmInspectorMetrics.COLUMNS[column];
+		}
+
+		@Override
+		public Object getValueAt(int row, int column) {
+			Object value = rows.get(row)[column];
+			if (value instanceof Double)
+				return String.format("%.2f", value);
+			return value;
+		}
+	}
+
+	public MetricsDialog() {
+		super(Main.parent, tr("Osm Inspector metrics"), new String[] {
+				tr("Refresh"), tr("Reset"), tr("Export..."), tr("Close") }, false);
+		model.refresh();
+		JScrollPane scroll = new JScrollPane(new JTable(model));
+		scroll.setPreferredSize(new Dimension(720, 320));
+		JPanel content = new JPanel(new BorderLayout());
+		content.add(scroll, BorderLayout.CENTER);
+		content.add(new JLabel(tr("wfs.bytes only counts complete tiles downloaded from the server, "
+				+ "not disk cache hits or responses cut off at the maximum bug count.")),
+				BorderLayout.SOUTH);
+		setContent(content, false);
+	}
+
+	@Override
+	protected void buttonAction(int buttonIndex, ActionEvent evt) {
+		switch (buttonIndex) {
+		case REFRESH:
+			model.refresh();
+			break;
+		case RESET:
+			OsmInspectorMetrics.getInstance().reset();
+			model.refresh();
+			break;
+		case EXPORT:
+			export();
+			break;
+		default:
+			super.buttonAction(buttonIndex, evt);
+		}
+	}
+
+	private void export() {
+		JFileChooser chooser = new JFileChooser();
+		chooser.setSelectedFile(new File("osminspector-metrics.csv"));
+		chooser.setDialogTitle(tr("Export metrics as .csv or .json"));
+		if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		try {
+			OsmInspectorMetrics.getInstance().dump(chooser.getSelectedFile());
+		} catch (IOException e) {
+			e.printStackTrace();
+			JOptionPane.showMessageDialog(this, tr("Could not write {0}: {1}",
+					chooser.getSelectedFile(), e.getMessage()), tr("Error"),
+					JOptionPane.ERROR_MESSAGE);
+		}
+	}
+}
@@ -2,6 +2,7 @@ package org.openstreetmap.josm.plugins.osminspector.gui;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
+import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
@@ -10,15 +11,19 @@ import java.awt.event.MouseListener;
 import java.util.Arrays;
 
 import javax.swing.AbstractAction;
-import javax.swing.DefaultListModel;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
 import org.openstreetmap.josm.Main;
-import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.gui.MapView.LayerChangeListener;
 import org.openstreetmap.josm.gui.OsmPrimitivRenderer;
 import org.openstreetmap.josm.gui.SideButton;
@@ -26,12 +31,10 @@ import org.openstreetmap.josm.gui.dialogs.ToggleDialog;
 import org.openstreetmap.josm.gui.layer.Layer;
 import org.openstreetmap.josm.gui.widgets.ListPopupMenu;
 import org.openstreetmap.josm.plugins.osminspector.OsmInspectorLayer;
+import org.openstreetmap.josm.plugins.osminspector.OsmInspectorLayer.BugIndex;
 import org.openstreetmap.josm.plugins.osminspector.OsmInspectorLayer.BugInfo;
 import org.openstreetmap.josm.tools.Shortcut;
 
-import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.Point;
-
 public class OsmInspectorDialog extends ToggleDialog implements
 		ListSelectionListener, LayerChangeListener, MouseListener {
 
@@ -40,7 +43,11 @@ public class OsmInspectorDialog extends ToggleDialog implements
 	private OsmInspectorNextAction actNext;
 	private OsmInspectorPrevAction actPrev;
 	private SelectionPopup popup;
-	private DefaultListModel model;
+	private BugListModel model;
+	// row of the bug list showing the bug next and prev moved to
+	private int current = -1;
+	// sizes every cell of the bug list
+	private static final String PROTOTYPE_CELL = "0000000000 : Osm Inspector bug description text";
 	/**
 	 * 
 	 */
@@ -61,35 +68,32 @@ public class OsmInspectorDialog extends ToggleDialog implements
 	protected void buildContentPanel() {
 		Main.map.addToggleDialog(this, true);
 		
-		model = new DefaultListModel();
-		refreshModel();
+		model = new BugListModel(layer.getOsmiIndex());
 		bugsList = new JList(model);
 		bugsList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-		bugsList.setLayoutOrientation(JList.HORIZONTAL_WRAP);
-		bugsList.setVisibleRowCount(-1);
+		// fixed cell sizes, so the list never measures the bugs it does not show
+		bugsList.setPrototypeCellValue(PROTOTYPE_CELL);
 		// refreshBugList();
 		// the next action
 		final SideButton nextButton = new SideButton(
 				actNext = new OsmInspectorNextAction(layer));
 		bugsList.getSelectionModel().addListSelectionListener(actNext);
-		nextButton.createArrow(new ActionListener() {
+		// both arrows zoom to the selected bug
+		ActionListener zoomToSelected = new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				int index = bugsList.getSelectedIndex();
-				Geometry geom = layer.getOsmiBugInfo().get(index).getGeom();
-				Point centroid = geom.getCentroid();
-				LatLon center = new LatLon(centroid.getY(), centroid.getX());
-				Main.map.mapView.zoomTo(center);
+				int row = bugsList.getSelectedIndex();
+				if (row < 0)
+					return;
+				int index = model.getBugIndex(row);
+				Main.map.mapView.zoomTo(model.getIndex().get(index).getCentroid());
 			}
-		});
+		};
+		nextButton.createArrow(zoomToSelected);
 
 		// the search button
 		final SideButton prevButton = new SideButton(
 				actPrev = new OsmInspectorPrevAction(layer));
-		prevButton.createArrow(new ActionListener() {
-			public void actionPerformed(ActionEvent e) {
-				System.out.println(e);
-			}
-		});
+		prevButton.createArrow(zoomToSelected);
 
 		Shortcut sprev = Shortcut.registerShortcut("prev", "Prev OSMI bug",
 				KeyEvent.VK_J, Shortcut.CTRL_SHIFT);
@@ -99,17 +103,95 @@ public class OsmInspectorDialog extends ToggleDialog implements
 				KeyEvent.VK_K, Shortcut.CTRL_SHIFT);
 		Main.registerActionShortcut(actNext, snext);
 
-		createLayout(bugsList, true,
+		createLayout(buildListPanel(), false,
 				Arrays.asList(new SideButton[] { nextButton, prevButton }));
-		this.add(bugsList);
+	}
+
+	/**
+	 * The bug list below a filter field and a sort order chooser
+	 */
+	private JPanel buildListPanel() {
+		final JTextField filter = new JTextField();
+		filter.setToolTipText(tr("Only show bugs whose id or description contains this text"));
+		filter.getDocument().addDocumentListener(new DocumentListener() {
+			public void insertUpdate(DocumentEvent e) {
+				model.setFilter(filter.getText());
+			}
+
+			public void removeUpdate(DocumentEvent e) {
+				model.setFilter(filter.getText());
+			}
+
+			public void changedUpdate(DocumentEvent e) {
+				model.setFilter(filter.getText());
+			}
+		});
+
+		final JComboBox sort = new JComboBox(BugListModel.SortOrder.values());
+		sort.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				model.setSortOrder((BugListModel.SortOrder) sort.getSelectedItem());
+			}
+		});
+
+		JPanel top = new JPanel(new BorderLayout());
+		top.add(new JLabel(tr("Filter:")), BorderLayout.WEST);
+		top.add(filter, BorderLayout.CENTER);
+		top.add(sort, BorderLayout.EAST);
+
+		JPanel panel = new JPanel(new BorderLayout());
+		panel.add(top, BorderLayout.NORTH);
+		panel.add(new JScrollPane(bugsList), BorderLayout.CENTER);
+		return panel;
 	}
 
 	public void refreshModel() {
-		model.clear();
-		for (BugInfo b : layer.getOsmiBugInfo()) {
-			model.addElement( b.getExtendedDesc() );
-		}
-		
+		current = -1;
+		model.setIndex(layer.getOsmiIndex());
+	}
+
+	/**
+	 * Shows the bugs added to the layer since the last refresh
+	 * 
+	 * @param index
+	 *            the layer's current index, bugs are only ever appended
+	 */
+	public void refreshModel(BugIndex index) {
+		model.bugsAdded(index);
+	}
+
+	/**
+	 * Moves to the next or previous bug in the order the list shows them,
+	 * filtered and sorted, wrapping around at its ends. Starts from the
+	 * selected row if there is one.
+	 * 
+	 * @return the bug or <code>null</code> if the list is empty
+	 */
+	private BugInfo step(int delta) {
+		int size = model.getSize();
+		if (size == 0)
+			return null;
+		int selected = bugsList.getSelectedIndex();
+		if (selected >= 0)
+			current = selected;
+		else if (current >= size)
+			current = -1;
+		current = ((current + delta) % size + size) % size;
+		bugsList.setSelectedIndex(current);
+		bugsList.ensureIndexIsVisible(current);
+		return model.getIndex().get(model.getBugIndex(current));
+	}
+
+	/**
+	 * Lets the layer prefetch the bug a further step in the same direction
+	 * would move to
+	 */
+	private void prefetchStep(int delta) {
+		int size = model.getSize();
+		if (size < 2)
+			return;
+		int upcoming = ((current + delta) % size + size) % size;
+		layer.getPrefetcher().navigated(model.getIndex().get(model.getBugIndex(upcoming)));
 	}
 
 	public OsmInspectorDialog(OsmInspectorLayer layer) {
@@ -155,13 +237,11 @@ public class OsmInspectorDialog extends ToggleDialog implements
 
 		@Override
 		public void actionPerformed(ActionEvent e) {
-			layer.getOsmiIndex().next();
-			BugInfo next = layer.getOsmiIndex().getItemPointedByNext();
-			System.out.println(next);
-			Geometry geom = next.getGeom();
-			Point centroid = geom.getCentroid();
-			LatLon center = new LatLon(centroid.getY(), centroid.getX());
-			Main.map.mapView.zoomTo(center);
+			BugInfo next = step(1);
+			if (next == null)
+				return;
+			Main.map.mapView.zoomTo(next.getCentroid());
+			prefetchStep(1);
 			
 		}
 
@@ -185,13 +265,11 @@ public class OsmInspectorDialog extends ToggleDialog implements
 
 		@Override
 		public void actionPerformed(ActionEvent e) {
-			layer.getOsmiIndex().prev();
-			BugInfo prev = layer.getOsmiIndex().getItemPointedByPrev();
-			System.out.println(prev);
-			Geometry geom = prev.getGeom();
-			Point centroid = geom.getCentroid();
-			LatLon center = new LatLon(centroid.getY(), centroid.getX());
-			Main.map.mapView.zoomTo(center);
+			BugInfo prev = step(-1);
+			if (prev == null)
+				return;
+			Main.map.mapView.zoomTo(prev.getCentroid());
+			prefetchStep(-1);
 		}
 
 		@Override
@@ -243,8 +321,6 @@ public class OsmInspectorDialog extends ToggleDialog implements
 
 	private void refreshBugList() {
 		bugsList.clearSelection();
-		bugsList = new JList(model);
-		
 	}
 
 	@Override
@@ -257,15 +333,14 @@ public class OsmInspectorDialog extends ToggleDialog implements
 
 	@Override
 	public void layerRemoved(Layer arg0) {
-		if(layer instanceof OsmInspectorLayer) {
+		if (arg0 == layer) {
 			bugsList.clearSelection();
-			model.clear();
+			model.setIndex(null);
 		}
 	}
 
 	@Override
 	public void valueChanged(ListSelectionEvent e) {
-		System.out.println(e.getFirstIndex());
 	}
 
 }
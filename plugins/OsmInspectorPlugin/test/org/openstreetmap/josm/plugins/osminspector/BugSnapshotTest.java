@@ -0,0 +1,98 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.openstreetmap.josm.plugins.osminspector.OsmInspectorLayer.BugIndex;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Round-trip of a {@link BugSnapshot} holding bugs without a position: the
+ * export leaves them out and the snapshot imports like the layer does it,
+ * through {@link BugIndex} and {@link OSMIFeatureTracker}.
+ *
+ * Run with <code>ant test</code>.
+ *
+ * @author snikhil
+ *
+ */
+public class BugSnapshotTest {
+
+	private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+	public static void main(String[] args) throws Exception {
+		SimpleFeatureType schema = DataUtilities.createType("points",
+				"msGeometry:Point:srid=4326,problem_id:String,error_desc:String");
+		SimpleFeature located = createBug(schema, 1, geometryFactory.createPoint(new Coordinate(8.5, 49.0)));
+		SimpleFeature missing = createBug(schema, 2, null);
+		SimpleFeature empty = createBug(schema, 3, geometryFactory.createPoint((Coordinate) null));
+
+		// the index refuses the bugs without a position instead of throwing
+		BugIndex index = new BugIndex();
+		check(!index.add(missing), "null geometry indexed");
+		check(!index.add(empty), "empty geometry indexed");
+		check(index.add(located), "located bug not indexed");
+
+		// a set may still hold such bugs, e.g. from an older snapshot
+		OSMIFeatureTracker tracker = new OSMIFeatureTracker("points", schema);
+		tracker.add(located);
+		tracker.add(missing);
+		tracker.add(empty);
+		BugSet bugs = tracker.commit();
+		check(bugs.size() == 3, "tracker lost bugs");
+		check(bugs.queryClusters(0, new Envelope(-1, 1, -1, 1)).isEmpty(),
+				"bugs without a position clustered near 0/0");
+
+		File file = File.createTempFile("osminspector", ".osmib");
+		file.deleteOnExit();
+		int skipped = BugSnapshot.write(file, Collections.singletonMap("view/points", bugs));
+		check(skipped == 2, "expected 2 skipped bugs, got " + skipped);
+
+		BugSnapshot snapshot = BugSnapshot.open(file);
+		check(snapshot.getSectionCount() == 1, "expected one section");
+		BugSnapshot.Section section = snapshot.getSection(0);
+		check(section.size() == 1, "expected one bug, got " + section.size());
+
+		// imported as OsmInspectorLayer.loadFeatures does
+		BugIndex imported = new BugIndex();
+		OSMIFeatureTracker importer = new OSMIFeatureTracker(section.getTypeName(), schema);
+		FeatureCollection<SimpleFeatureType, SimpleFeature> features = section.getFeatures();
+		FeatureIterator<SimpleFeature> it = features.features();
+		try {
+			while (it.hasNext()) {
+				SimpleFeature feature = it.next();
+				check(BugSet.hasPosition(feature), "imported bug without a position");
+				check(importer.add(feature), "imported bug refused by the tracker");
+				check(imported.add(feature), "imported bug refused by the index");
+			}
+		} finally {
+			it.close();
+		}
+		check(importer.commit().size() == 1, "import did not publish the bug");
+		check(imported.getId(0) == 1, "wrong bug imported");
+		System.out.println("BugSnapshotTest passed");
+	}
+
+	private static SimpleFeature createBug(SimpleFeatureType schema, int id, Geometry geom) {
+		SimpleFeatureBuilder builder = new SimpleFeatureBuilder(schema);
+		builder.add(geom);
+		builder.add(String.valueOf(id));
+		builder.add("Unconnected major 1");
+		return builder.buildFeature("points." + id);
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
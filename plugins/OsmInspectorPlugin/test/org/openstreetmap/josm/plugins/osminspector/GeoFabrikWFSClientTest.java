@@ -0,0 +1,218 @@
+package org.openstreetmap.josm.plugins.osminspector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.Preferences;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs {@link GeoFabrikWFSClient} against a local stand-in for an OSMI view:
+ * an in-process HTTP server answers GetCapabilities, DescribeFeatureType and
+ * GetFeature with fixed documents shaped like the mapserver responses of
+ * tools.geofabrik.de. Checks that the type is discovered, that a tile is
+ * fetched with its bugs and attributes, and that fetching it again is served
+ * by the disk cache without a request.
+ *
+ * Run with <code>ant test</code>.
+ *
+ * @author snikhil
+ *
+ */
+public class GeoFabrikWFSClientTest {
+
+	private static final String MS_NS = "http://mapserver.gis.umn.edu/mapserver";
+
+	private static final AtomicInteger getFeatureRequests = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		// the disk cache and the endpoint metadata go below josm.home
+		File home = File.createTempFile("osminspector", ".home");
+		home.delete();
+		home.mkdirs();
+		System.setProperty("josm.home", home.getAbsolutePath());
+		if (Main.pref == null)
+			Main.pref = new Preferences();
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		final String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/osmi/view/fixture/wxs?";
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, base);
+			}
+		});
+		server.start();
+		try {
+			GeoFabrikWFSClient client = new GeoFabrikWFSClient(
+					base + "SERVICE=WFS&VERSION=1.0.0&REQUEST=GetCapabilities",
+					new Bounds(48.95, 8.45, 49.05, 8.55), new TileGrid());
+			check("fixture".equals(client.getViewName()), "view name " + client.getViewName());
+
+			String[] typeNames = client.getTypeNames();
+			check(typeNames.length == 1 && typeNames[0].endsWith("points"),
+					"unexpected types " + Arrays.toString(typeNames));
+			String typeName = typeNames[0];
+
+			List<TileGrid.Tile> tiles = client.claimMissingTiles(typeName);
+			check(!tiles.isEmpty(), "no tiles claimed");
+			TileGrid.Tile tile = tiles.get(0);
+
+			GeoFabrikWFSClient.TileFeatures fetched = client.fetchTile(typeName, tile);
+			check(fetched.isComplete(), "tile below maxFeatures incomplete");
+			check(getFeatureRequests.get() == 1, "expected 1 GetFeature, got " + getFeatureRequests.get());
+			checkBugs(fetched);
+
+			// the complete tile went to the disk cache
+			GeoFabrikWFSClient.TileFeatures cached = client.fetchTile(typeName, tile);
+			check(getFeatureRequests.get() == 1, "cached tile requested again");
+			check(cached.getBytes() == 0, "cached tile counted as downloaded");
+			checkBugs(cached);
+		} finally {
+			server.stop(0);
+		}
+		System.out.println("GeoFabrikWFSClientTest passed");
+	}
+
+	private static void checkBugs(GeoFabrikWFSClient.TileFeatures tile) {
+		int count = 0;
+		FeatureIterator<SimpleFeature> it = tile.getFeatures().features();
+		try {
+			while (it.hasNext()) {
+				SimpleFeature bug = it.next();
+				check(BugSet.hasPosition(bug), "bug " + bug.getID() + " without position");
+				Object id = bug.getAttribute("problem_id");
+				check(id != null && Long.parseLong(id.toString().trim()) > 0, "bad problem_id " + id);
+				check(bug.getAttribute("error_desc") != null, "error_desc missing");
+				++count;
+			}
+		} finally {
+			it.close();
+		}
+		check(count == 2, "expected 2 bugs, got " + count);
+	}
+
+	private static void respond(HttpExchange exchange, String base) throws IOException {
+		String query = exchange.getRequestURI().getRawQuery();
+		String request = query == null ? "" : query.toUpperCase();
+		if ("POST".equalsIgnoreCase(exchange.getRequestMethod()))
+			request += read(exchange.getRequestBody()).toUpperCase();
+
+		String body;
+		if (request.contains("GETCAPABILITIES")) {
+			body = capabilities(base);
+		} else if (request.contains("DESCRIBEFEATURETYPE")) {
+			body = schema();
+		} else if (request.contains("GETFEATURE")) {
+			getFeatureRequests.incrementAndGet();
+			body = features(base);
+		} else {
+			exchange.sendResponseHeaders(400, -1);
+			exchange.close();
+			return;
+		}
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+		exchange.sendResponseHeaders(200, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			out.write(buffer, 0, n);
+		}
+		return out.toString("UTF-8");
+	}
+
+	private static String capabilities(String base) {
+		String dcp = "<DCPType><HTTP><Get onlineResource=\"" + base + "\"/></HTTP></DCPType>";
+		return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<WFS_Capabilities version=\"1.0.0\" xmlns=\"http://www.opengis.net/wfs\""
+				+ " xmlns:ogc=\"http://www.opengis.net/ogc\">"
+				+ "<Service><Name>MapServer WFS</Name><Title>fixture</Title>"
+				+ "<OnlineResource>" + base + "</OnlineResource></Service>"
+				+ "<Capability><Request>"
+				+ "<GetCapabilities>" + dcp + "</GetCapabilities>"
+				+ "<DescribeFeatureType><SchemaDescriptionLanguage><XMLSCHEMA/></SchemaDescriptionLanguage>"
+				+ dcp + "</DescribeFeatureType>"
+				+ "<GetFeature><ResultFormat><GML2/></ResultFormat>" + dcp + "</GetFeature>"
+				+ "</Request></Capability>"
+				+ "<FeatureTypeList><Operations><Query/></Operations>"
+				+ "<FeatureType><Name>points</Name><Title>points</Title><SRS>EPSG:4326</SRS>"
+				+ "<LatLongBoundingBox minx=\"-180\" miny=\"-90\" maxx=\"180\" maxy=\"90\"/></FeatureType>"
+				+ "</FeatureTypeList>"
+				+ "<ogc:Filter_Capabilities><ogc:Spatial_Capabilities><ogc:Spatial_Operators>"
+				+ "<ogc:BBOX/><ogc:Intersect/></ogc:Spatial_Operators></ogc:Spatial_Capabilities>"
+				+ "<ogc:Scalar_Capabilities><ogc:Logical_Operators/><ogc:Comparison_Operators>"
+				+ "<ogc:Simple_Comparisons/><ogc:Like/></ogc:Comparison_Operators></ogc:Scalar_Capabilities>"
+				+ "</ogc:Filter_Capabilities>"
+				+ "</WFS_Capabilities>";
+	}
+
+	private static String schema() {
+		return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<schema targetNamespace=\"" + MS_NS + "\" xmlns:ms=\"" + MS_NS + "\""
+				+ " xmlns=\"http://www.w3.org/2001/XMLSchema\" xmlns:gml=\"http://www.opengis.net/gml\""
+				+ " elementFormDefault=\"qualified\" version=\"0.1\">"
+				+ "<import namespace=\"http://www.opengis.net/gml\""
+				+ " schemaLocation=\"http://schemas.opengis.net/gml/2.1.2/feature.xsd\"/>"
+				+ "<element name=\"points\" type=\"ms:pointsType\" substitutionGroup=\"gml:_Feature\"/>"
+				+ "<complexType name=\"pointsType\"><complexContent>"
+				+ "<extension base=\"gml:AbstractFeatureType\"><sequence>"
+				+ "<element name=\"msGeometry\" type=\"gml:PointPropertyType\" minOccurs=\"0\" maxOccurs=\"1\"/>"
+				+ "<element name=\"problem_id\" type=\"string\"/>"
+				+ "<element name=\"error_desc\" type=\"string\"/>"
+				+ "</sequence></extension></complexContent></complexType>"
+				+ "</schema>";
+	}
+
+	private static String features(String base) {
+		String describe = (base + "SERVICE=WFS&VERSION=1.0.0&REQUEST=DescribeFeatureType&TYPENAME=points")
+				.replace("&", "&amp;");
+		return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<wfs:FeatureCollection xmlns:ms=\"" + MS_NS + "\""
+				+ " xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\""
+				+ " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+				+ " xsi:schemaLocation=\"" + MS_NS + " " + describe + "\">"
+				+ "<gml:boundedBy><gml:Box srsName=\"EPSG:4326\">"
+				+ "<gml:coordinates>8.48,48.98 8.52,49.02</gml:coordinates></gml:Box></gml:boundedBy>"
+				+ feature(1, "8.48,48.98", "unconnected highway")
+				+ feature(2, "8.52,49.02", "duplicate node")
+				+ "</wfs:FeatureCollection>";
+	}
+
+	private static String feature(int id, String coordinates, String description) {
+		return "<gml:featureMember><ms:points fid=\"points." + id + "\">"
+				+ "<ms:msGeometry><gml:Point srsName=\"EPSG:4326\">"
+				+ "<gml:coordinates>" + coordinates + "</gml:coordinates></gml:Point></ms:msGeometry>"
+				+ "<ms:problem_id>" + id + "</ms:problem_id>"
+				+ "<ms:error_desc>" + description + "</ms:error_desc>"
+				+ "</ms:points></gml:featureMember>";
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}